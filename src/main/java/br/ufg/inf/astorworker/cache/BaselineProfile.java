@@ -0,0 +1,399 @@
+package br.ufg.inf.astorworker.cache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.enums.Phase;
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.executors.DevicePool;
+import br.ufg.inf.astorworker.executors.Watchdog;
+import br.inf.ufg.astorworker.utils.FileSystemUtils;
+import br.ufg.inf.astorworker.utils.HashUtils;
+
+/**
+ * How the tests of the original program behave. With "baseline" set, the
+ * unit and instrumentation regressions run that many times on the pristine
+ * project while it is set up, and the duration and outcomes of every test
+ * are read from the JUnit XML reports Gradle writes. The failing tests are
+ * part of the regression, so they are profiled too, before the host names
+ * them. Tests with different outcomes in different runs are flagged as
+ * flaky. The profile is kept under workDir/cache/<project>/baseline.tsv
+ * and reused while the project's sources are unchanged.
+ *
+ * The time limit of the tests of a variant is then "timeoutfactor" times
+ * what the same tests took on the original program, plus
+ * "timeoutmargin" seconds, where a test run takes its slowest duration
+ * plus the slowest time Gradle spent around the tests of its type. The
+ * fixed limit of the phase is never exceeded, and is used alone when the
+ * profile does not know a test of the phase.
+ *
+ * <pre>
+ * #	source hash	runs
+ * OVERHEAD	type	milliseconds
+ * TEST	type	test	milliseconds	passes	failures
+ * </pre>
+ */
+public class BaselineProfile {
+	private static final XMLInputFactory factory = createFactory();
+	private static BaselineProfile instance = null;
+	private Map<TestType, Long> overheads = new EnumMap<TestType, Long>(TestType.class);
+	private Map<TestType, Map<String, TestProfile>> tests = new EnumMap<TestType, Map<String, TestProfile>>(TestType.class);
+	private boolean ready;
+	private Logger logger = Logger.getLogger(BaselineProfile.class);
+
+	private BaselineProfile() {}
+
+	public static synchronized BaselineProfile getInstance() {
+		if(instance == null)
+			instance = new BaselineProfile();
+
+		return instance;
+	}
+
+	/**
+	 * Profiles the project that is being set up, which must still be
+	 * pristine, or loads its profile from disk.
+	 */
+	public synchronized void setup() throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+		int runs = ConfigurationProperties.hasProperty("baseline") ? ConfigurationProperties.getPropertyInt("baseline") : 0;
+
+		ready = false;
+		overheads.clear();
+		tests.clear();
+
+		if(runs <= 0)
+			return;
+
+		File file = new File("workDir/cache/" + project.getProjectName() + "/baseline.tsv");
+		String hash = HashUtils.sha256(new File(project.getModuleLocation(), "src"));
+
+		if(load(file, hash, runs)) {
+			logger.info("Baseline profile of " + project.getProjectName() + " loaded from " + file);
+			logFlakyTests();
+			ready = true;
+			return;
+		}
+
+		try {
+			for(int run = 1; run <= runs; run++) {
+				logger.info("Running the baseline of the original program, run " + run + " of " + runs);
+
+				if(project.unitRegressionTestCasesExist())
+					profile(TestType.UNIT, new File(project.getModuleLocation(), "build/test-results"),
+							() -> project.runAllUnitTests(null));
+
+				if(project.instrumentationRegressionTestCasesExist() && DevicePool.getInstance().size() > 0)
+					profile(TestType.INSTRUMENTATION, new File(project.getModuleLocation(), "build/outputs/androidTest-results"),
+							() -> project.runAllInstrumentationTests(null));
+			}
+		} catch(Exception e) {
+			logger.warn("Could not run the baseline, the fixed time limits apply: " + e.getMessage());
+			overheads.clear();
+			tests.clear();
+			return;
+		}
+
+		save(file, hash, runs);
+		logFlakyTests();
+		ready = true;
+	}
+
+	/* Without the old reports the test task is never up to date, so every run really runs the tests */
+	private void profile(TestType type, File reports, Watchdog.Work<List<String>> run) throws Exception {
+		FileUtils.deleteDirectory(reports);
+
+		long t_start = System.currentTimeMillis();
+		Watchdog.run(Phase.REGRESSION, run);
+		long wall = System.currentTimeMillis() - t_start;
+
+		Map<String, TestProfile> profiles = tests.computeIfAbsent(type, unused -> new HashMap<String, TestProfile>());
+		long total = 0;
+		int count = 0;
+
+		for(String report : reports.isDirectory() ? FileSystemUtils.findFilesWithExtension(reports, "xml", true) : Collections.<String>emptyList()) {
+			if(!new File(report).getName().startsWith("TEST-"))
+				continue;
+
+			for(TestProfile result : parse(new File(report))) {
+				TestProfile profile = profiles.computeIfAbsent(result.test, TestProfile::new);
+				profile.millis = Math.max(profile.millis, result.millis);
+				profile.passes += result.passes;
+				profile.failures += result.failures;
+				total += result.millis;
+				count++;
+			}
+		}
+
+		if(count == 0)
+			throw new IllegalStateException("No " + type.toString().toLowerCase() + " test reports found in " + reports);
+
+		overheads.merge(type, Math.max(wall - total, 0), Math::max);
+		logger.info("Baseline of the " + type.toString().toLowerCase() + " tests: " + count + " tests in " + wall + " ms, " + total + " ms in the tests");
+	}
+
+	/* "<testcase classname name time>", failed if it holds a failure or an error, skipped tests are left out */
+	private static List<TestProfile> parse(File report) throws IOException, XMLStreamException {
+		List<TestProfile> results = new ArrayList<TestProfile>();
+		InputStream in = new BufferedInputStream(new FileInputStream(report));
+
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			TestProfile current = null;
+			boolean skipped = false;
+
+			while(reader.hasNext()) {
+				int event = reader.next();
+
+				if(event == XMLStreamConstants.START_ELEMENT) {
+					String element = reader.getLocalName();
+
+					if(element.equals("testcase")) {
+						current = new TestProfile(reader.getAttributeValue(null, "classname") + "#" + reader.getAttributeValue(null, "name"));
+						current.millis = parseMillis(reader.getAttributeValue(null, "time"));
+						skipped = false;
+					}
+					else if(current != null && (element.equals("failure") || element.equals("error")))
+						current.failures = 1;
+
+					else if(current != null && element.equals("skipped"))
+						skipped = true;
+				}
+				else if(event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("testcase")) {
+					if(!skipped) {
+						if(current.failures == 0)
+							current.passes = 1;
+						results.add(current);
+					}
+					current = null;
+				}
+			}
+
+			reader.close();
+		} finally {
+			in.close();
+		}
+
+		return results;
+	}
+
+	/* Seconds, e.g. "0.25" or "1,234.5" */
+	private static long parseMillis(String time) {
+		try {
+			return time == null ? 0 : Math.round(Double.parseDouble(time.replace(",", "")) * 1000);
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The time limit of the phase, in milliseconds, derived from the
+	 * profile, or 0 if there is no profile for it.
+	 */
+	public synchronized long getTimeout(Phase phase) {
+		if(!ready)
+			return 0;
+
+		AndroidProject project = AndroidProject.getInstance();
+		long expected;
+
+		if(phase == Phase.FAILING_TESTS)
+			expected = expected(TestType.UNIT, project.getFailingUnitTestCases()) + expected(TestType.INSTRUMENTATION, project.getFailingInstrumentationTestCases());
+
+		else if(phase == Phase.REGRESSION)
+			expected = expected(TestType.UNIT, project.unitRegressionTestCasesExist()) + expected(TestType.INSTRUMENTATION, project.instrumentationRegressionTestCasesExist());
+
+		else return 0;
+
+		if(expected < 0)
+			return 0;
+
+		double factor = ConfigurationProperties.hasProperty("timeoutfactor") ? Double.parseDouble(ConfigurationProperties.getProperty("timeoutfactor")) : 3;
+		long margin = ConfigurationProperties.hasProperty("timeoutmargin") ? ConfigurationProperties.getPropertyInt("timeoutmargin") * 1000L : 30000;
+		return Math.round(factor * expected) + margin;
+	}
+
+	/* The time a run of the tests took on the original program, or -1 if some test is unknown */
+	private long expected(TestType type, Collection<String> names) {
+		if(names == null)
+			return 0;
+
+		if(!overheads.containsKey(type))
+			return -1;
+
+		long expected = overheads.get(type);
+		for(String name : names) {
+			long millis = getMillis(type, name);
+			if(millis < 0)
+				return -1;
+
+			expected += millis;
+		}
+
+		return expected;
+	}
+
+	private long expected(TestType type, boolean runs) {
+		if(!runs)
+			return 0;
+
+		if(!overheads.containsKey(type))
+			return -1;
+
+		long expected = overheads.get(type);
+		for(TestProfile profile : tests.get(type).values())
+			expected += profile.millis;
+
+		return expected;
+	}
+
+	/**
+	 * The slowest duration of the test, or of every test of the class when
+	 * only a class is named, or -1 if it was not profiled.
+	 */
+	public synchronized long getMillis(TestType type, String name) {
+		Map<String, TestProfile> profiles = tests.get(type);
+		if(profiles == null)
+			return -1;
+
+		TestProfile profile = profiles.get(name);
+		if(profile != null)
+			return profile.millis;
+
+		long millis = -1;
+		for(TestProfile candidate : profiles.values()) {
+			if(candidate.test.startsWith(name + "#"))
+				millis = Math.max(millis, 0) + candidate.millis;
+		}
+
+		return millis;
+	}
+
+	/**
+	 * Tests that both passed and failed on the original program.
+	 */
+	public synchronized Set<String> getFlakyTests() {
+		Set<String> flaky = new HashSet<String>();
+
+		for(Map<String, TestProfile> profiles : tests.values()) {
+			for(TestProfile profile : profiles.values()) {
+				if(profile.passes > 0 && profile.failures > 0)
+					flaky.add(profile.test);
+			}
+		}
+
+		return flaky;
+	}
+
+	/**
+	 * Every test of the type the baseline ran.
+	 */
+	public synchronized Set<String> getTests(TestType type) {
+		Map<String, TestProfile> profiles = tests.get(type);
+		return profiles == null ? new HashSet<String>() : new HashSet<String>(profiles.keySet());
+	}
+
+	public synchronized boolean isFlaky(String test) {
+		return getFlakyTests().contains(test);
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	private void logFlakyTests() {
+		for(String test : getFlakyTests())
+			logger.warn(test + " both passed and failed on the original program, it is flaky");
+	}
+
+	/* The profile only holds if it comes from the same sources and enough runs */
+	private boolean load(File file, String hash, int runs) throws IOException {
+		if(!file.isFile())
+			return false;
+
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		if(lines.isEmpty())
+			return false;
+
+		String[] header = lines.get(0).split("\t");
+		if(header.length < 3 || !header[1].equals(hash) || Integer.parseInt(header[2]) < runs)
+			return false;
+
+		for(String line : lines.subList(1, lines.size())) {
+			String[] fields = line.split("\t");
+
+			if(fields[0].equals("OVERHEAD"))
+				overheads.put(TestType.valueOf(fields[1]), Long.parseLong(fields[2]));
+
+			else if(fields[0].equals("TEST")) {
+				TestProfile profile = new TestProfile(fields[2]);
+				profile.millis = Long.parseLong(fields[3]);
+				profile.passes = Integer.parseInt(fields[4]);
+				profile.failures = Integer.parseInt(fields[5]);
+				tests.computeIfAbsent(TestType.valueOf(fields[1]), unused -> new HashMap<String, TestProfile>()).put(profile.test, profile);
+			}
+		}
+
+		return true;
+	}
+
+	private void save(File file, String hash, int runs) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.add("#\t" + hash + "\t" + runs);
+
+		for(Map.Entry<TestType, Long> overhead : overheads.entrySet())
+			lines.add("OVERHEAD\t" + overhead.getKey() + "\t" + overhead.getValue());
+
+		for(Map.Entry<TestType, Map<String, TestProfile>> type : tests.entrySet()) {
+			for(TestProfile profile : new TreeMap<String, TestProfile>(type.getValue()).values())
+				lines.add("TEST\t" + type.getKey() + "\t" + profile.test + "\t" + profile.millis + "\t" + profile.passes + "\t" + profile.failures);
+		}
+
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+	}
+
+	/* The reports have no DTD, but nothing is loaded even if they had */
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	private static class TestProfile {
+		private String test;
+		private long millis;
+		private int passes;
+		private int failures;
+
+		private TestProfile(String test) {
+			this.test = test;
+		}
+	}
+}
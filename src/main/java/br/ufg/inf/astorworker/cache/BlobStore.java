@@ -0,0 +1,219 @@
+package br.ufg.inf.astorworker.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.utils.HashUtils;
+
+/**
+ * Local store of file contents addressed by their SHA-256. It outlives
+ * the per-project working directory so repeated sessions on the same app
+ * find their files already here. The store is capped in size and evicts
+ * the least recently used blobs, except the ones pinned by a transfer in
+ * progress.
+ */
+public class BlobStore {
+	private static BlobStore instance = null;
+	private static final long DEFAULT_CAPACITY_MB = 1024;
+	private File directory;
+	private long capacity;
+	private long size;
+	private LinkedHashMap<String, Long> blobs;
+	private Map<String, Integer> pinned;
+	private Logger logger = Logger.getLogger(BlobStore.class);
+
+	private BlobStore(File directory, long capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+		this.blobs = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		this.pinned = new HashMap<String, Integer>();
+		load();
+	}
+
+	public static synchronized BlobStore getInstance() {
+		if(instance == null) {
+			long capacity = ConfigurationProperties.hasProperty("blobstorecap")
+					? ConfigurationProperties.getPropertyInt("blobstorecap") : DEFAULT_CAPACITY_MB;
+			instance = new BlobStore(new File("workDir/blobs"), capacity * 1024 * 1024);
+		}
+
+		return instance;
+	}
+
+	/* Rebuilds the LRU order of a previous session from the modification times */
+	private void load() {
+		directory.mkdirs();
+		List<File> files = new ArrayList<File>();
+
+		for(File bucket : directory.listFiles()) {
+			if(bucket.isDirectory())
+				files.addAll(Arrays.asList(bucket.listFiles()));
+		}
+
+		files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+		for(File file : files) {
+			if(file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+
+			blobs.put(file.getName(), file.length());
+			size += file.length();
+		}
+
+		logger.info("Blob store loaded: " + blobs.size() + " blobs, " + (size / 1024) + " KB");
+	}
+
+	public synchronized boolean contains(String hash) {
+		return blobs.containsKey(hash);
+	}
+
+	/**
+	 * The hashes that are not in the store, once each, in their order.
+	 */
+	public synchronized List<String> findMissing(Collection<String> hashes) {
+		Set<String> missing = new LinkedHashSet<String>();
+
+		for(String hash : hashes) {
+			if(!blobs.containsKey(hash))
+				missing.add(hash);
+		}
+
+		return new ArrayList<String>(missing);
+	}
+
+	public String put(byte[] data) throws IOException {
+		String hash = HashUtils.toHex(HashUtils.sha256(data));
+
+		synchronized(this) {
+			if(blobs.containsKey(hash))
+				return hash;
+		}
+
+		File temporary = File.createTempFile(hash, ".tmp", directory);
+		Files.write(temporary.toPath(), data);
+		store(hash, temporary);
+		return hash;
+	}
+
+	/**
+	 * Adds a file whose hash is already known. The file is copied, the
+	 * caller keeps ownership of the original.
+	 */
+	public void putFile(String hash, File file) throws IOException {
+		synchronized(this) {
+			if(blobs.containsKey(hash))
+				return;
+		}
+
+		File temporary = File.createTempFile(hash, ".tmp", directory);
+		Files.copy(file.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		store(hash, temporary);
+	}
+
+	private synchronized void store(String hash, File temporary) throws IOException {
+		if(blobs.containsKey(hash)) {
+			temporary.delete();
+			return;
+		}
+
+		File target = getFile(hash);
+		target.getParentFile().mkdirs();
+		Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		blobs.put(hash, target.length());
+		size += target.length();
+		evict();
+	}
+
+	public synchronized byte[] get(String hash) throws IOException {
+		File file = touch(hash);
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Copies the blob to the given location, replacing any existing file.
+	 */
+	public void copyTo(String hash, File target) throws IOException {
+		File file;
+		synchronized(this) {
+			file = touch(hash);
+		}
+
+		target.getParentFile().mkdirs();
+		Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private File touch(String hash) throws IOException {
+		if(blobs.get(hash) == null)
+			throw new IOException("Blob " + hash + " is not in the store");
+
+		File file = getFile(hash);
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Protects the given blobs from eviction until {@link #unpin(Collection)}
+	 * is called with the same hashes.
+	 */
+	public synchronized void pin(Collection<String> hashes) {
+		for(String hash : hashes)
+			pinned.merge(hash, 1, Integer::sum);
+	}
+
+	public synchronized void unpin(Collection<String> hashes) {
+		for(String hash : hashes) {
+			Integer count = pinned.get(hash);
+			if(count == null)
+				continue;
+
+			if(count <= 1)
+				pinned.remove(hash);
+			else
+				pinned.put(hash, count - 1);
+		}
+
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = blobs.entrySet().iterator();
+
+		while(size > capacity && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+
+			if(pinned.containsKey(eldest.getKey()))
+				continue;
+
+			getFile(eldest.getKey()).delete();
+			size -= eldest.getValue();
+			iterator.remove();
+			logger.debug("Blob evicted: " + eldest.getKey());
+		}
+	}
+
+	private File getFile(String hash) {
+		return new File(directory, hash.substring(0, 2) + File.separator + hash);
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,294 @@
+package br.ufg.inf.astorworker.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.faultlocalization.CoverageListener;
+
+/**
+ * Lines covered by each test, kept on disk across sessions in a single
+ * append-only file that is memory-mapped for reading and writing. Entries
+ * are keyed by the test and by the hash of the sources it ran against, so
+ * entries of older sources are never returned, and they are dropped from
+ * the file when it is opened for other sources. The file is mapped with
+ * room to spare and the mapping doubles when it fills up, so a write does
+ * not map the file again.
+ *
+ * <pre>
+ * file:   'A' 'W' 'C' version, int end of the records, records, zeros up to the mapped size
+ * record: int length of the rest, string key,
+ *         int n, n x (string source, int m, m x int line)
+ * string: unsigned short length, UTF-8 bytes
+ * </pre>
+ *
+ * The source is the path of the file without ".java", "a/b/C", and it is
+ * replayed to the listener as its package and class.
+ *
+ * The end in the header is written after the record, so a record cut short
+ * by a crash lies past the end and is overwritten by the next one. The file
+ * is only read through the channel before it is mapped, and it is never
+ * truncated or replaced, since a mapped file can be neither on Windows and
+ * the mapping of a previous session may still be alive.
+ */
+public class CoverageCache {
+	private static final byte[] MAGIC = { 'A', 'W', 'C', 3 };
+	private static final int HEADER_SIZE = MAGIC.length + 4;
+	private static final int INITIAL_CAPACITY = 1 << 20;
+	private File file;
+	private String sourceHash;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private Map<String, Integer> index;
+	private int end;
+	private int stale;
+	private Logger logger = Logger.getLogger(CoverageCache.class);
+
+	public CoverageCache(File file, String sourceHash) throws IOException {
+		this.file = file;
+		this.sourceHash = sourceHash;
+
+		file.getParentFile().mkdirs();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		load();
+
+		if(stale > 0) {
+			logger.info("Dropping " + stale + " coverage cache entries of other sources");
+			compact();
+		}
+
+		map(Math.max(end, INITIAL_CAPACITY));
+		logger.info("Coverage cache " + file + " opened with " + index.size() + " entries");
+	}
+
+	public synchronized boolean contains(TestType type, String test) {
+		return index.containsKey(key(type, test));
+	}
+
+	/**
+	 * Replays the cached lines of the test into the listener. Returns false
+	 * if the test has no entry for the current sources.
+	 */
+	public synchronized boolean read(TestType type, String test, CoverageListener listener) {
+		Integer offset = index.get(key(type, test));
+		if(offset == null)
+			return false;
+
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position(offset + 4);
+		readString(buffer);
+
+		int classes = buffer.getInt();
+		for(int i = 0; i < classes; i++) {
+			String source = readString(buffer);
+			int slash = source.lastIndexOf('/');
+			String packageName = slash < 0 ? "" : source.substring(0, slash);
+			String className = source.substring(slash + 1);
+			int lines = buffer.getInt();
+
+			for(int j = 0; j < lines; j++)
+				listener.covered(packageName, className, buffer.getInt());
+		}
+
+		return true;
+	}
+
+	/**
+	 * The tests of the type that have an entry for the current sources.
+	 */
+	public synchronized List<String> getTests(TestType type) {
+		String prefix = key(type, "");
+		List<String> tests = new ArrayList<String>();
+
+		for(String key : index.keySet()) {
+			if(key.startsWith(prefix))
+				tests.add(key.substring(prefix.length()));
+		}
+
+		return tests;
+	}
+
+	public synchronized void write(TestType type, String test, Map<String, List<Integer>> covered) throws IOException {
+		String key = key(type, test);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(0);
+		writeString(out, key);
+		out.writeInt(covered.size());
+
+		for(String source : covered.keySet()) {
+			writeString(out, source);
+			out.writeInt(covered.get(source).size());
+			for(int line : covered.get(source))
+				out.writeInt(line);
+		}
+
+		byte[] record = bytes.toByteArray();
+
+		if((long) end + record.length > Integer.MAX_VALUE) {
+			logger.warn("Coverage cache is full, " + test + " is not cached");
+			return;
+		}
+
+		if(end + record.length > mapped.capacity())
+			map(Math.min(Integer.MAX_VALUE, Math.max(2L * mapped.capacity(), (long) end + record.length)));
+
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position(end + 4);
+		buffer.put(record, 4, record.length - 4);
+		mapped.putInt(end, record.length - 4);
+
+		index.put(key, end);
+		end += record.length;
+		mapped.putInt(MAGIC.length, end);
+	}
+
+	public synchronized void close() throws IOException {
+		mapped.force();
+		channel.close();
+	}
+
+	private String key(TestType type, String test) {
+		return sourceHash + ":" + type + ":" + test;
+	}
+
+	/* Reads the keys of the records through the channel, before the file is mapped */
+	private void load() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		byte[] magic = Arrays.copyOf(header.array(), MAGIC.length);
+		index = new HashMap<String, Integer>();
+		end = HEADER_SIZE;
+		stale = 0;
+
+		int recordsEnd = header.getInt(MAGIC.length);
+		if(!Arrays.equals(magic, MAGIC) || recordsEnd < HEADER_SIZE || recordsEnd > channel.size()) {
+			if(channel.size() > 0)
+				logger.warn("Ignoring the unreadable coverage cache " + file);
+
+			writeEnd(HEADER_SIZE);
+			return;
+		}
+
+		String prefix = sourceHash + ":";
+		ByteBuffer prologue = ByteBuffer.allocate(6);
+
+		while(end + prologue.capacity() <= recordsEnd) {
+			prologue.clear();
+			readFully(prologue, end);
+			int length = prologue.getInt(0);
+			int keyLength = prologue.getShort(4) & 0xFFFF;
+
+			if(length < 2 + keyLength || length > recordsEnd - end - 4)
+				break;
+
+			ByteBuffer keyBytes = ByteBuffer.allocate(keyLength);
+			readFully(keyBytes, end + prologue.capacity());
+			String key = new String(keyBytes.array(), StandardCharsets.UTF_8);
+
+			if(key.startsWith(prefix))
+				index.put(key, end);
+			else
+				stale++;
+
+			end += 4 + length;
+		}
+
+		if(end != recordsEnd) {
+			logger.warn("Dropping " + (recordsEnd - end) + " bytes of an unreadable coverage cache record");
+			writeEnd(end);
+		}
+	}
+
+	/*
+	 * Moves the records of the current sources to the start of the file.
+	 * The end is reset first, so a crash halfway leaves an empty cache
+	 * rather than a broken one.
+	 */
+	private void compact() throws IOException {
+		writeEnd(HEADER_SIZE);
+		channel.force(false);
+
+		Map<String, Integer> compacted = new HashMap<String, Integer>();
+		int position = HEADER_SIZE;
+
+		for(int offset : new TreeSet<Integer>(index.values())) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			readFully(length, offset);
+			ByteBuffer record = ByteBuffer.allocate(4 + length.getInt(0));
+			readFully(record, offset);
+
+			compacted.put(readKey(record), position);
+			record.rewind();
+			position = (int) writeFully(channel, record, position);
+		}
+
+		index = compacted;
+		end = position;
+		writeEnd(end);
+	}
+
+	private String readKey(ByteBuffer record) {
+		ByteBuffer buffer = record.duplicate();
+		buffer.position(4);
+		return readString(buffer);
+	}
+
+	private void writeEnd(int end) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC);
+		header.putInt(end);
+		header.flip();
+		writeFully(channel, header, 0);
+	}
+
+	/* Fills the buffer from the position, leaving zeros past the end of the file */
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read == -1)
+				break;
+			position += read;
+		}
+	}
+
+	private void map(long size) throws IOException {
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/* Returns the position after the buffer */
+	private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining())
+			position += channel.write(buffer, position);
+
+		return position;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,261 @@
+package br.ufg.inf.astorworker.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
+import br.ufg.inf.astorworker.codec.ResultCodec;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.utils.HashUtils;
+import br.ufg.inf.astorworker.utils.JavaSourceUtils;
+
+/**
+ * Validation results of the variants already seen, so an equivalent
+ * variant is answered without compiling or testing it again. Variants are
+ * keyed by the SHA-256 of the files in which they really differ from the
+ * pristine sources, after stripping comments and formatting, plus the
+ * pristine sources, the options that change how a variant is validated
+ * and the failing tests the variant is validated with.
+ * Compiled variants are also keyed by the hash of their classes, which
+ * catches variants the compiler makes equal. The results of the last
+ * "validationcache" variants are kept in memory; with
+ * "validationcachedisk" every result is also kept on disk, under
+ * workDir/cache/<project>/validation, and found again by later sessions.
+ * Execution errors are never cached.
+ *
+ * <pre>
+ * disk entry: long milliseconds the validation took, ResultCodec bytes
+ * </pre>
+ */
+public class ValidationCache {
+	private static final String[] VALIDATION_OPTIONS = {"failfast", "singlepass", "regressionselection", "unitrunner", "prioritize"};
+	private static ValidationCache instance = null;
+	private LinkedHashMap<String, byte[]> memory;
+	private File directory;
+	private String context;
+	private Map<String, String> normalizedPristine = new ConcurrentHashMap<String, String>();
+	private int hits;
+	private int misses;
+	private long savedMillis;
+	private Logger logger = Logger.getLogger(ValidationCache.class);
+
+	private ValidationCache() {}
+
+	public static synchronized ValidationCache getInstance() {
+		if(instance == null)
+			instance = new ValidationCache();
+
+		return instance;
+	}
+
+	/**
+	 * Starts caching for the project that was just set up.
+	 */
+	public synchronized void setup() throws IOException {
+		AndroidProject project = AndroidProject.getInstance();
+		int capacity = ConfigurationProperties.getPropertyInt("validationcache");
+
+		memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > capacity;
+			}
+		};
+
+		context = HashUtils.sha256(project.getPristineSourceDirectory());
+		for(String option : VALIDATION_OPTIONS)
+			context += ":" + option + "=" + ConfigurationProperties.getProperty(option);
+		normalizedPristine.clear();
+
+		directory = null;
+		if(ConfigurationProperties.getPropertyBool("validationcachedisk")) {
+			directory = new File("workDir/cache/" + project.getProjectName() + "/validation");
+			directory.mkdirs();
+		}
+
+		hits = misses = 0;
+		savedMillis = 0;
+	}
+
+	public boolean isEnabled() {
+		return memory != null && (ConfigurationProperties.getPropertyInt("validationcache") > 0 || directory != null);
+	}
+
+	/**
+	 * Returns the result of an equivalent variant, or runs the validation
+	 * and caches its result.
+	 */
+	public TestCasesProgramValidationResult validate(Variant variant, Validation validation) throws Exception {
+		if(!isEnabled())
+			return validation.run();
+
+		String key = key(variant);
+		TestCasesProgramValidationResult cached = get(variant, key);
+		if(cached != null)
+			return cached;
+
+		long t_start = System.currentTimeMillis();
+		TestCasesProgramValidationResult result = validation.run();
+		put(key, result, System.currentTimeMillis() - t_start);
+		return result;
+	}
+
+	/**
+	 * Like validate, for a compiled variant: the result of a variant compiled
+	 * to the same classes is reused. Variants the worker did not compile are
+	 * always validated.
+	 */
+	public TestCasesProgramValidationResult validateBytecode(Variant variant, Validation validation) throws Exception {
+		if(!isEnabled() || variant.getBytecodeHash() == null)
+			return validation.run();
+
+		String key = bytecodeKey(variant);
+		TestCasesProgramValidationResult cached = get(variant, key);
+		if(cached != null)
+			return cached;
+
+		long t_start = System.currentTimeMillis();
+		TestCasesProgramValidationResult result = validation.run();
+		put(key, result, System.currentTimeMillis() - t_start);
+		return result;
+	}
+
+	/**
+	 * The key of the variant: the hash of every file it adds, changes or
+	 * deletes, normalized, in path order.
+	 */
+	public String key(Variant variant) throws IOException {
+		AndroidProject project = AndroidProject.getInstance();
+		Set<String> paths = new TreeSet<String>(variant.getFiles().keySet());
+
+		if(variant.isComplete())
+			paths.addAll(project.getPristineSourceFiles());
+		else
+			paths.addAll(variant.getDeletedFiles());
+
+		// The failing tests arrive after the project is set up
+		MessageDigest digest = HashUtils.newSha256();
+		digest.update((context + ":" + project.getFailingUnitTestCases() + ":" + project.getFailingInstrumentationTestCases()).getBytes(StandardCharsets.UTF_8));
+
+		for(String path : paths) {
+			byte[] contents = variant.getFiles().get(path);
+			boolean pristine = project.getPristineSourceFiles().contains(path);
+
+			if(contents == null) {
+				if(pristine && (variant.isComplete() || variant.getDeletedFiles().contains(path)))
+					digest.update(("\0-" + path).getBytes(StandardCharsets.UTF_8));
+				continue;
+			}
+
+			String normalized = normalize(path, contents);
+			if(pristine && normalized.equals(getNormalizedPristine(path)))
+				continue;
+
+			digest.update(("\0+" + path + "\0" + normalized).getBytes(StandardCharsets.UTF_8));
+		}
+
+		return HashUtils.toHex(digest.digest());
+	}
+
+	private String bytecodeKey(Variant variant) {
+		AndroidProject project = AndroidProject.getInstance();
+		String key = context + ":" + project.getFailingUnitTestCases() + ":" + project.getFailingInstrumentationTestCases() + ":classes:" + variant.getBytecodeHash();
+		return HashUtils.toHex(HashUtils.sha256(key.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Returns the cached result of the key, or null if there is none.
+	 */
+	public synchronized TestCasesProgramValidationResult get(Variant variant, String key) throws IOException {
+		byte[] entry = memory.get(key);
+
+		if(entry == null && directory != null) {
+			File file = getFile(key);
+			if(file.isFile()) {
+				entry = Files.readAllBytes(file.toPath());
+				memory.put(key, entry);
+			}
+		}
+
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(entry);
+		long millis = buffer.getLong();
+		byte[] encoded = new byte[buffer.remaining()];
+		buffer.get(encoded);
+
+		hits++;
+		savedMillis += millis;
+		logger.info(variant.getName() + " is equivalent to a variant already validated. " + getStatistics());
+		return ResultCodec.decodeValidationResult(encoded);
+	}
+
+	public synchronized void put(String key, TestCasesProgramValidationResult result, long millis) throws IOException {
+		if(result.isExecutionError())
+			return;
+
+		byte[] encoded = ResultCodec.encode(result);
+		byte[] entry = ByteBuffer.allocate(8 + encoded.length).putLong(millis).put(encoded).array();
+		memory.put(key, entry);
+
+		if(directory != null) {
+			File file = getFile(key);
+			file.getParentFile().mkdirs();
+
+			Path temporary = Files.createTempFile(file.getParentFile().toPath(), key, ".tmp");
+			Files.write(temporary, entry);
+			Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	public synchronized String getStatistics() {
+		int lookups = hits + misses;
+		int ratio = lookups == 0 ? 0 : hits * 100 / lookups;
+		return "Validation cache: " + hits + "/" + lookups + " hits (" + ratio + "%), " + (savedMillis / 1000) + " s saved";
+	}
+
+	private File getFile(String key) {
+		return new File(directory, key.substring(0, 2) + "/" + key);
+	}
+
+	private String getNormalizedPristine(String path) throws IOException {
+		String normalized = normalizedPristine.get(path);
+
+		if(normalized == null) {
+			normalized = normalize(path, AndroidProject.getInstance().getPristineSource(path));
+			normalizedPristine.put(path, normalized);
+		}
+
+		return normalized;
+	}
+
+	/* Only Java sources are normalized, other files are compared by their hash */
+	private static String normalize(String path, byte[] contents) {
+		if(path.endsWith(".java"))
+			return JavaSourceUtils.normalize(new String(contents, StandardCharsets.UTF_8));
+
+		return HashUtils.toHex(HashUtils.sha256(contents));
+	}
+
+	public interface Validation {
+		TestCasesProgramValidationResult run() throws Exception;
+	}
+}
@@ -0,0 +1,68 @@
+package br.ufg.inf.astorworker.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads what {@link CompactOutput} writes.
+ */
+public class CompactInput {
+	private byte[] bytes;
+	private int position;
+	private String[] strings;
+
+	public CompactInput(byte[] bytes) {
+		this.bytes = bytes;
+		this.position = 0;
+	}
+
+	public int readByte() throws IOException {
+		if(position >= bytes.length)
+			throw new EOFException();
+		return bytes[position++] & 0xFF;
+	}
+
+	public int readVarInt() throws IOException {
+		int value = 0;
+
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
+	public double readDouble() throws IOException {
+		long bits = 0;
+		for(int i = 0; i < 8; i++)
+			bits = (bits << 8) | readByte();
+		return Double.longBitsToDouble(bits);
+	}
+
+	public String readString() throws IOException {
+		int length = readVarInt();
+		if(length > bytes.length - position)
+			throw new EOFException();
+
+		String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return value;
+	}
+
+	public void readStringTable() throws IOException {
+		strings = new String[readVarInt()];
+		for(int i = 0; i < strings.length; i++)
+			strings[i] = readString();
+	}
+
+	public String readIndexedString() throws IOException {
+		int index = readVarInt();
+		if(strings == null || index >= strings.length)
+			throw new IOException("Invalid string index: " + index);
+		return strings[index];
+	}
+}
@@ -0,0 +1,96 @@
+package br.ufg.inf.astorworker.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte sink with unsigned varints and a table that writes every distinct
+ * string once, later references use its index.
+ */
+public class CompactOutput {
+	private byte[] bytes;
+	private int size;
+	private Map<String, Integer> stringIndex;
+	private List<String> strings;
+
+	public CompactOutput(int expectedSize) {
+		bytes = new byte[Math.max(expectedSize, 16)];
+		stringIndex = new HashMap<String, Integer>();
+		strings = new ArrayList<String>();
+	}
+
+	private void ensureCapacity(int extra) {
+		if(size + extra > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+	}
+
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) value;
+	}
+
+	public void writeVarInt(int value) {
+		if(value < 0)
+			throw new IllegalArgumentException("Negative varint: " + value);
+
+		ensureCapacity(5);
+		while((value & ~0x7F) != 0) {
+			bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte) value;
+	}
+
+	public void writeDouble(double value) {
+		long bits = Double.doubleToLongBits(value);
+		ensureCapacity(8);
+		for(int shift = 56; shift >= 0; shift -= 8)
+			bytes[size++] = (byte) (bits >>> shift);
+	}
+
+	public void writeString(String value) {
+		byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(encoded.length);
+		writeBytes(encoded, encoded.length);
+	}
+
+	/**
+	 * Registers the string in the table and returns its index. The table
+	 * must be written before the indices that refer to it.
+	 */
+	public int index(String value) {
+		Integer index = stringIndex.get(value);
+
+		if(index == null) {
+			index = strings.size();
+			stringIndex.put(value, index);
+			strings.add(value);
+		}
+
+		return index;
+	}
+
+	public void writeStringTable() {
+		writeVarInt(strings.size());
+		for(String value : strings)
+			writeString(value);
+	}
+
+	public void write(CompactOutput other) {
+		writeBytes(other.bytes, other.size);
+	}
+
+	private void writeBytes(byte[] data, int length) {
+		ensureCapacity(length);
+		System.arraycopy(data, 0, bytes, size, length);
+		size += length;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+}
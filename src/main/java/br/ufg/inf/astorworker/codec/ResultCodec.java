@@ -0,0 +1,175 @@
+package br.ufg.inf.astorworker.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.inria.astor.core.validation.entity.TestResult;
+import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
+import br.ufg.inf.astorworker.faultlocalization.entities.Line;
+
+/**
+ * Compact, versioned binary encoding of the results sent to the host.
+ *
+ * <pre>
+ * header:       'A' 'W' version kind
+ * string table: varint n, n x (varint length, UTF-8 bytes)
+ *
+ * kind 1, validation result:
+ *   byte flags (executionError, compilationSuccess, regressionExecuted, resultSucess, hasTestResult)
+ *   test result: varint casesExecuted, varint failures,
+ *                varint n, n x string index (successTest), varint n, n x string index (failTest)
+ *
+ * kind 2, candidates:
+ *   varint n, n x line
+ *   line: string index (className), varint number, varint n, n x string index (tests),
+ *         varint failingExecuted, varint failingNotExecuted, varint passingExecuted,
+ *         varint totalPassing, double suspiciousValue
+ * </pre>
+ *
+ * Class and test names are written once in the string table no matter how
+ * many lines refer to them.
+ */
+public class ResultCodec {
+	public static final int VERSION = 1;
+	private static final int KIND_VALIDATION_RESULT = 1;
+	private static final int KIND_CANDIDATES = 2;
+
+	private static final int EXECUTION_ERROR = 1;
+	private static final int COMPILATION_SUCCESS = 1 << 1;
+	private static final int REGRESSION_EXECUTED = 1 << 2;
+	private static final int RESULT_SUCCESS = 1 << 3;
+	private static final int HAS_TEST_RESULT = 1 << 4;
+
+	public static byte[] encode(TestCasesProgramValidationResult result) {
+		CompactOutput header = new CompactOutput(256);
+		CompactOutput body = new CompactOutput(256);
+		TestResult testResult = result.getTestResult();
+
+		int flags = 0;
+		if(result.isExecutionError()) flags |= EXECUTION_ERROR;
+		if(result.isCompilationSuccess()) flags |= COMPILATION_SUCCESS;
+		if(result.isRegressionExecuted()) flags |= REGRESSION_EXECUTED;
+		if(result.isResultSucess()) flags |= RESULT_SUCCESS;
+		if(testResult != null) flags |= HAS_TEST_RESULT;
+		body.writeByte(flags);
+
+		if(testResult != null) {
+			body.writeVarInt(testResult.casesExecuted);
+			body.writeVarInt(testResult.failures);
+			writeIndexedStrings(body, header, testResult.getSuccessTest());
+			writeIndexedStrings(body, header, testResult.getFailures());
+		}
+
+		return finish(header, body, KIND_VALIDATION_RESULT);
+	}
+
+	public static byte[] encode(List<Line> candidates) {
+		CompactOutput header = new CompactOutput(4096);
+		CompactOutput body = new CompactOutput(candidates.size() * 8 + 16);
+
+		body.writeVarInt(candidates.size());
+		for(Line line : candidates) {
+			body.writeVarInt(header.index(line.getClassName()));
+			body.writeVarInt(line.getNumber());
+			writeIndexedStrings(body, header, line.getTestList());
+			body.writeVarInt(line.getFailingExecuted());
+			body.writeVarInt(line.getFailingNotExecuted());
+			body.writeVarInt(line.getPassingExecuted());
+			body.writeVarInt(line.getTotalPassing());
+			body.writeDouble(line.getSuspiciousValue());
+		}
+
+		return finish(header, body, KIND_CANDIDATES);
+	}
+
+	public static TestCasesProgramValidationResult decodeValidationResult(byte[] bytes) throws IOException {
+		CompactInput in = start(bytes, KIND_VALIDATION_RESULT);
+		int flags = in.readByte();
+		TestResult testResult = null;
+
+		if((flags & HAS_TEST_RESULT) != 0) {
+			testResult = new TestResult();
+			testResult.casesExecuted = in.readVarInt();
+			testResult.failures = in.readVarInt();
+			testResult.setSuccessTest(readIndexedStrings(in));
+			testResult.setFailTest(readIndexedStrings(in));
+		}
+
+		return new TestCasesProgramValidationResult(testResult,
+				(flags & RESULT_SUCCESS) != 0,
+				(flags & REGRESSION_EXECUTED) != 0,
+				(flags & COMPILATION_SUCCESS) != 0,
+				(flags & EXECUTION_ERROR) != 0);
+	}
+
+	public static List<Line> decodeCandidates(byte[] bytes) throws IOException {
+		CompactInput in = start(bytes, KIND_CANDIDATES);
+		int size = in.readVarInt();
+		List<Line> candidates = new ArrayList<Line>(size);
+
+		for(int i = 0; i < size; i++) {
+			String className = in.readIndexedString();
+			int number = in.readVarInt();
+			List<String> tests = readIndexedStrings(in);
+			candidates.add(new Line(number, className, tests,
+					in.readVarInt(), in.readVarInt(), in.readVarInt(), in.readVarInt(), in.readDouble()));
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Tells whether the bytes were produced by this codec rather than by
+	 * Java serialization, which starts with 0xACED.
+	 */
+	public static boolean isCompact(byte[] bytes) {
+		return bytes.length >= 2 && bytes[0] == 'A' && bytes[1] == 'W';
+	}
+
+	private static byte[] finish(CompactOutput header, CompactOutput body, int kind) {
+		CompactOutput out = new CompactOutput(64);
+		out.writeByte('A');
+		out.writeByte('W');
+		out.writeByte(VERSION);
+		out.writeByte(kind);
+		header.writeStringTable();
+		out.write(header);
+		out.write(body);
+		return out.toByteArray();
+	}
+
+	private static CompactInput start(byte[] bytes, int kind) throws IOException {
+		if(!isCompact(bytes))
+			throw new IOException("Not a compact result");
+
+		CompactInput in = new CompactInput(bytes);
+		in.readByte();
+		in.readByte();
+
+		int version = in.readByte();
+		if(version > VERSION)
+			throw new IOException("Unsupported result version: " + version);
+
+		int actualKind = in.readByte();
+		if(actualKind != kind)
+			throw new IOException("Unexpected result kind: " + actualKind);
+
+		in.readStringTable();
+		return in;
+	}
+
+	private static void writeIndexedStrings(CompactOutput body, CompactOutput table, List<String> values) {
+		body.writeVarInt(values.size());
+		for(String value : values)
+			body.writeVarInt(table.index(value));
+	}
+
+	private static List<String> readIndexedStrings(CompactInput in) throws IOException {
+		int size = in.readVarInt();
+		List<String> values = new ArrayList<String>(size);
+		for(int i = 0; i < size; i++)
+			values.add(in.readIndexedString());
+		return values;
+	}
+}
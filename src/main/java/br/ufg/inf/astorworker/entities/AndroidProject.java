@@ -14,14 +14,32 @@ import java.util.regex.Matcher;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
+import br.ufg.inf.astorworker.cache.BaselineProfile;
+import br.ufg.inf.astorworker.cache.ValidationCache;
+import br.ufg.inf.astorworker.enums.Phase;
 import br.ufg.inf.astorworker.executors.CommandExecutorProcess;
 import br.ufg.inf.astorworker.executors.AndroidToolsExecutorProcess;
+import br.ufg.inf.astorworker.executors.DevicePool;
+import br.ufg.inf.astorworker.executors.TestOutputMonitor;
+import br.ufg.inf.astorworker.executors.UnitTestRunnerPool;
+import br.ufg.inf.astorworker.executors.VariantCompiler;
+import br.ufg.inf.astorworker.executors.Watchdog;
+import br.ufg.inf.astorworker.validators.ProgramValidator;
+import br.ufg.inf.astorworker.validators.TestPrioritizer;
 import fr.inria.astor.core.setup.ConfigurationProperties;
 import br.inf.ufg.astorworker.utils.FileSystemUtils;
+import br.ufg.inf.astorworker.utils.CloneUtils;
 
 public class AndroidProject {
 	private static AndroidProject instance = null;
@@ -42,6 +60,10 @@ public class AndroidProject {
 	private List<String> subprojects;
 	private boolean unitRegressionTestCasesExist;
 	private boolean instrumentationRegressionTestCasesExist;
+	private SourceTree sourceTree;
+	private List<ProjectSlot> slots;
+	private BlockingQueue<ProjectSlot> freeSlots;
+	private ThreadLocal<ProjectSlot> currentSlot = new ThreadLocal<ProjectSlot>();
 	private Logger logger = Logger.getLogger(AndroidProject.class);
 
 	private Pattern unitTaskPattern = Pattern.compile("\\s*(test)([a-zA-Z0-9]+)(unittest)\\s-\\s(.*?)\\s*");
@@ -77,8 +99,10 @@ public class AndroidProject {
 		logger.info("Test package: " + testPackage);
 
 		//Uninstalling old app version
-		AndroidToolsExecutorProcess.uninstallPackage(mainPackage);
-		AndroidToolsExecutorProcess.uninstallPackage(testPackage);
+		for(String device : DevicePool.getInstance().getDevices()) {
+			AndroidToolsExecutorProcess.uninstallPackage(mainPackage, device);
+			AndroidToolsExecutorProcess.uninstallPackage(testPackage, device);
+		}
 
 
 		buildVersion = findBuildVersion();
@@ -96,6 +120,14 @@ public class AndroidProject {
 		flavor = findFlavor();
 		findRegressionTestCases();
 		setupWorkingDirectory();
+
+		if(UnitTestRunnerPool.isEnabled())
+			UnitTestRunnerPool.getInstance().setup();
+
+		BaselineProfile.getInstance().setup();
+		TestPrioritizer.getInstance().reset();
+		ProgramValidator.reset();
+		ValidationCache.getInstance().setup();
 	}
 
 	private void findRegressionTestCases() throws Exception {
@@ -194,13 +226,16 @@ public class AndroidProject {
 		logger.info("Finding dependencies");
 		saveDependenciesLocally();
 
-		String dependencies = "";
+		dependencies = "";
 		List<String> output = FileSystemUtils.findFilesWithExtension(new File(projectAbsolutePath), "jar", true);
 
 		for(String entry : output)
 			dependencies += entry + System.getProperty("path.separator");
 
-		AndroidToolsExecutorProcess.compileProject(projectAbsolutePath);
+		Watchdog.run(Phase.COMPILE, () -> {
+			AndroidToolsExecutorProcess.compileProject(projectAbsolutePath);
+			return null;
+		});
 
 		output = FileSystemUtils.listContentsDirectory(new File(projectAbsolutePath + "/" + mainFolder + "/build/intermediates/classes/"));
 
@@ -445,16 +480,89 @@ public class AndroidProject {
 		defaultSrc.mkdirs();
 
 		FileUtils.copyDirectory(new File(projectAbsolutePath + "/" + mainFolder + "/src/main/java"), defaultSrc);
+
+		//Output dir for the classes of the variant being compiled
+		File variantBin = new File("workDir/AstorWorker-" + projectName + "/variant/bin");
+		ConfigurationProperties.setProperty("variantbin", variantBin.getAbsolutePath());
+		variantBin.mkdirs();
+
+		sourceTree = new SourceTree(new File(projectAbsolutePath + "/" + mainFolder + "/src/main/java"), defaultSrc);
+		createSlots(defaultSrc);
+		VariantCompiler.getInstance().reset();
+	}
+
+	/**
+	 * Slot 0 is the project itself, every other slot is a clone of it under
+	 * "slots/<n>", sharing the unchanged files through hard links.
+	 */
+	private void createSlots(File defaultSrc) throws Exception {
+		int count = ConfigurationProperties.hasProperty("slots") ? ConfigurationProperties.getPropertyInt("slots") : 1;
+		slots = new ArrayList<ProjectSlot>();
+		slots.add(new ProjectSlot(0, projectDirectory, sourceTree));
+
+		for(int i = 1; i < count; i++) {
+			File clone = new File("workDir/AstorWorker-" + projectName + "/slots/" + i + "/" + projectDirectory.getName()).getAbsoluteFile();
+			int copied = CloneUtils.cloneProject(projectDirectory, clone);
+			slots.add(new ProjectSlot(i, clone, new SourceTree(new File(clone, mainFolder + "/src/main/java"), defaultSrc)));
+			logger.info("Slot " + i + " created at " + clone + ", " + copied + " files copied");
+		}
+
+		freeSlots = new LinkedBlockingQueue<ProjectSlot>(slots);
+	}
+
+	/**
+	 * Runs the task on the first free slot, waiting for one if needed. While
+	 * it runs, every call of this thread that touches the project sources or
+	 * runs tests uses that slot.
+	 */
+	public <T> T runInSlot(Callable<T> task) throws Exception {
+		ProjectSlot slot = freeSlots.take();
+		currentSlot.set(slot);
+
+		try {
+			return task.call();
+		} finally {
+			currentSlot.remove();
+			freeSlots.put(slot);
+		}
+	}
+
+	public int getSlotCount() {
+		return slots == null ? 1 : slots.size();
+	}
+
+	/* Threads not running in a slot work on the project itself */
+	private ProjectSlot getSlot() {
+		ProjectSlot slot = currentSlot.get();
+		return slot != null ? slot : slots.get(0);
+	}
+
+	private String getSlotLocation() {
+		return slots == null ? projectAbsolutePath : getSlot().getDirectory().getAbsolutePath();
 	}
 
-	private void restoreOriginalSource() throws Exception {
-		FileUtils.copyDirectory(new File(ConfigurationProperties.getProperty("defaultsrc")), 
-								new File((projectAbsolutePath + "/" + mainFolder + "/src/main/java/")));
+	public void restoreOriginalSource() throws Exception {
+		getSlot().getSourceTree().reset();
 	}
 
-	public void applyVariant(File variant) throws Exception {
-		restoreOriginalSource();
-		FileUtils.copyDirectory(variant, new File(projectAbsolutePath + "/" + mainFolder + "/src/main/java/"));
+	public void applyVariant(Variant variant) throws Exception {
+		getSlot().getSourceTree().apply(variant);
+	}
+
+	public File getSourceDirectory() {
+		return getSlot().getSourceTree().getDirectory();
+	}
+
+	public File getPristineSourceDirectory() {
+		return sourceTree.getPristineDirectory();
+	}
+
+	public byte[] getPristineSource(String path) throws IOException {
+		return sourceTree.getPristineContents(path);
+	}
+
+	public Set<String> getPristineSourceFiles() {
+		return sourceTree.getPristineFiles();
 	}
 
 	public void activateCodeCoverage() throws IOException {
@@ -470,24 +578,157 @@ public class AndroidProject {
 	}
 
 
+	/**
+	 * Compiles the app and its unit tests without running them.
+	 */
+	public List<String> compileUnitTests() throws Exception {
+		String variant = unitTestTask.substring("test".length(), unitTestTask.length() - "UnitTest".length());
+		return Watchdog.run(Phase.COMPILE, () -> runTask("compile" + variant + "UnitTestJavaWithJavac", true));
+	}
+
+	public File getDebugClassesDirectory() {
+		return new File(projectAbsolutePath + "/" + mainFolder + "/build/intermediates/classes/" 
+				+ (flavor == null ? "" : flavor + "/") + "debug");
+	}
+
+	public File getUnitTestClassesDirectory() {
+		return new File(projectAbsolutePath + "/" + mainFolder + "/build/intermediates/classes/test/" 
+				+ (flavor == null ? "" : flavor + "/") + "debug");
+	}
+
+	/**
+	 * Classpath to run the unit tests outside Gradle: the compiled tests,
+	 * the app classes and every dependency of the project.
+	 */
+	public String getUnitTestClasspath() {
+		String separator = System.getProperty("path.separator");
+		return getUnitTestClassesDirectory().getAbsolutePath() + separator 
+				+ getDebugClassesDirectory().getAbsolutePath() + separator + dependencies;
+	}
+
+	/**
+	 * False if the unit tests need more than their classpath to run as they
+	 * do under Gradle: Robolectric, or testOptions such as the mockable
+	 * android.jar returning default values. The classpath only has the
+	 * stubs of android.jar.
+	 */
+	public boolean unitTestsRunOnClasspath() throws IOException {
+		String buildGradle = FileUtils.readFileToString(new File(projectAbsolutePath + "/" + mainFolder + "/build.gradle"));
+		return !buildGradle.toLowerCase().contains("robolectric") && !buildGradle.contains("testOptions");
+	}
+
 	public List<String> runTask(String task, boolean compileDependencies) throws Exception {
-		return AndroidToolsExecutorProcess.runGradleTask(projectAbsolutePath, task, compileDependencies);
+		return AndroidToolsExecutorProcess.runGradleTask(getSlotLocation(), task, compileDependencies);
 	}
 
-	public List<String> runFailingInstrumentationTests() throws Exception {
-		return AndroidToolsExecutorProcess.runInstrumentationTests(projectAbsolutePath, instrumentationTestTask, failingInstrumentationTestCases);
+	/* Every instrumentation run takes a device of the pool, so slots only wait for each other when devices run out */
+	public List<String> runFailingInstrumentationTests(TestOutputMonitor monitor) throws Exception {
+		return runInstrumentationTests(failingInstrumentationTestCases, monitor);
 	}
 
-	public List<String> runAllInstrumentationTests() throws Exception {
-		return AndroidToolsExecutorProcess.runInstrumentationTests(projectAbsolutePath, instrumentationTestTask);
-	}	
+	public List<String> runInstrumentationTests(List<String> tests, TestOutputMonitor monitor) throws Exception {
+		String device = DevicePool.getInstance().acquire();
+
+		try {
+			return AndroidToolsExecutorProcess.runInstrumentationTests(getSlotLocation(), instrumentationTestTask, tests, device, monitor);
+		} finally {
+			DevicePool.getInstance().release(device);
+		}
+	}
+
+	public List<String> runAllInstrumentationTests(TestOutputMonitor monitor) throws Exception {
+		String device = DevicePool.getInstance().acquire();
 
-	public List<String> runFailingUnitTests() throws Exception {
-		return AndroidToolsExecutorProcess.runUnitTests(projectAbsolutePath, unitTestTask, failingUnitTestCases);
+		try {
+			return AndroidToolsExecutorProcess.runInstrumentationTests(getSlotLocation(), instrumentationTestTask, device, monitor);
+		} finally {
+			DevicePool.getInstance().release(device);
+		}
 	}
 
-	public List<String> runAllUnitTests() throws Exception {
-		return AndroidToolsExecutorProcess.runUnitTests(projectAbsolutePath, unitTestTask);
+	/**
+	 * Runs a Gradle task that needs a device, such as the instrumentation
+	 * test task, on a device of the pool.
+	 */
+	public List<String> runDeviceTask(String task, boolean compileDependencies) throws Exception {
+		String device = DevicePool.getInstance().acquire();
+
+		try {
+			return AndroidToolsExecutorProcess.runGradleTask(getSlotLocation(), task, compileDependencies, device);
+		} finally {
+			DevicePool.getInstance().release(device);
+		}
+	}
+
+	/**
+	 * True if the instrumentation regression is split across the devices.
+	 */
+	public boolean shardsInstrumentationTests() {
+		return ConfigurationProperties.getPropertyBool("shard") && DevicePool.getInstance().size() > 1;
+	}
+
+	/**
+	 * Splits all instrumentation tests in as many shards as there are free
+	 * devices and runs them at the same time, one shard per device. Returns
+	 * the output of every shard. All shards share the monitor, so every one
+	 * stops once it has decided the outcome.
+	 */
+	public List<List<String>> runShardedInstrumentationTests(TestOutputMonitor monitor) throws Exception {
+		List<String> devices = DevicePool.getInstance().acquireFree();
+		ExecutorService runners = Executors.newFixedThreadPool(devices.size());
+
+		try {
+			// The installs share the build directory, so they run one after the other
+			for(String device : devices)
+				AndroidToolsExecutorProcess.installForTesting(getSlotLocation(), getInstallTasks(), device);
+
+			String instrumentation = AndroidToolsExecutorProcess.findInstrumentation(testPackage, devices.get(0));
+			List<Future<List<String>>> shards = new ArrayList<Future<List<String>>>();
+			long deadline = Watchdog.getDeadline();
+
+			// The shards run within the time left to the regression
+			for(int i = 0; i < devices.size(); i++) {
+				int shard = i;
+				shards.add(runners.submit(() -> Watchdog.runUntil(deadline, 
+						() -> AndroidToolsExecutorProcess.runInstrumentationShard(instrumentation, devices.size(), shard, devices.get(shard), monitor))));
+			}
+
+			List<List<String>> outputs = new ArrayList<List<String>>();
+			for(Future<List<String>> shard : shards) {
+				try {
+					outputs.add(shard.get());
+				} catch(ExecutionException e) {
+					throw new IllegalStateException("Could not run an instrumentation shard: " + e.getCause().getMessage());
+				}
+			}
+
+			return outputs;
+		} finally {
+			runners.shutdownNow();
+			DevicePool.getInstance().release(devices);
+		}
+	}
+
+	/* "connectedDebugAndroidTest" is installed with "installDebug installDebugAndroidTest" */
+	private String getInstallTasks() {
+		String variant = instrumentationTestTask.replace("connected", "").replace("AndroidTest", "");
+
+		if(variant.isEmpty())
+			variant = "Debug";
+
+		return "install" + variant + " install" + variant + "AndroidTest";
+	}
+
+	public List<String> runFailingUnitTests(TestOutputMonitor monitor) throws Exception {
+		return runUnitTests(failingUnitTestCases, monitor);
+	}
+
+	public List<String> runUnitTests(List<String> tests, TestOutputMonitor monitor) throws Exception {
+		return AndroidToolsExecutorProcess.runUnitTests(getSlotLocation(), unitTestTask, tests, monitor);
+	}
+
+	public List<String> runAllUnitTests(TestOutputMonitor monitor) throws Exception {
+		return AndroidToolsExecutorProcess.runUnitTests(getSlotLocation(), unitTestTask, monitor);
 	}
 
 	public void setFailingInstrumentationTestCases(String tests) {
@@ -522,8 +763,12 @@ public class AndroidProject {
 		return failingInstrumentationTestCases;
 	}
 
+	public String getModuleLocation() {
+		return getSlotLocation() + "/" + mainFolder;
+	}
+
 	public String getLocation() {
-		return projectAbsolutePath;
+		return getSlotLocation();
 	}
 
 	public String getMainPackage() {
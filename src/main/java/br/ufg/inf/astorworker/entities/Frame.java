@@ -0,0 +1,48 @@
+package br.ufg.inf.astorworker.entities;
+
+import java.nio.charset.StandardCharsets;
+
+import br.ufg.inf.astorworker.enums.MessageType;
+
+/**
+ * A message of the framed protocol. On the wire a frame is written as
+ * [int length][byte type][int requestId][payload], where length counts
+ * every byte after itself.
+ */
+public class Frame {
+	public static final int HEADER_SIZE = 5;
+	private MessageType type;
+	private int requestId;
+	private byte[] payload;
+
+	public Frame(MessageType type, int requestId, byte[] payload) {
+		this.type = type;
+		this.requestId = requestId;
+		this.payload = (payload == null) ? new byte[0] : payload;
+	}
+
+	public Frame(MessageType type, int requestId, String payload) {
+		this(type, requestId, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public MessageType getType() {
+		return type;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public String getPayloadAsString() {
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return "Frame = [type: " + type + ", requestId: " + requestId + ", size: " + payload.length + "]";
+	}
+}
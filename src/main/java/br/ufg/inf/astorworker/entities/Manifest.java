@@ -0,0 +1,35 @@
+package br.ufg.inf.astorworker.entities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * List of (path, SHA-256) pairs describing a project or variant tree
+ * whose contents are resolved through the blob store.
+ */
+public class Manifest {
+	private String rootName;
+	private Map<String, String> files;
+
+	public Manifest(String rootName) {
+		this.rootName = rootName;
+		this.files = new LinkedHashMap<String, String>();
+	}
+
+	public void addFile(String path, String hash) {
+		files.put(path, hash);
+	}
+
+	public String getRootName() {
+		return rootName;
+	}
+
+	public Map<String, String> getFiles() {
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return "Manifest = [root: " + rootName + ", files: " + files.size() + "]";
+	}
+}
@@ -0,0 +1,37 @@
+package br.ufg.inf.astorworker.entities;
+
+import java.io.File;
+
+/**
+ * One copy of the project where variants are tested. Slot 0 is the
+ * project the worker received, the others are clones of it, each with
+ * its own sources and build directories.
+ */
+public class ProjectSlot {
+	private int index;
+	private File directory;
+	private SourceTree sourceTree;
+
+	public ProjectSlot(int index, File directory, SourceTree sourceTree) {
+		this.index = index;
+		this.directory = directory;
+		this.sourceTree = sourceTree;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public SourceTree getSourceTree() {
+		return sourceTree;
+	}
+
+	@Override
+	public String toString() {
+		return "Slot " + index + " (" + directory + ")";
+	}
+}
@@ -0,0 +1,185 @@
+package br.ufg.inf.astorworker.entities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import br.ufg.inf.astorworker.utils.DeltaUtils;
+
+/**
+ * The live source directory of a project together with its pristine copy.
+ * Variants are written straight into the live directory and only files
+ * whose contents change are touched. The tree remembers which files may
+ * differ from the pristine copy so a delta variant can undo the previous
+ * one without copying the whole snapshot back.
+ */
+public class SourceTree {
+	private File directory;
+	private File pristineDirectory;
+	private Set<String> pristineFiles;
+	private Set<String> touchedFiles;
+	private Map<String, byte[]> pristineContents = new ConcurrentHashMap<String, byte[]>();
+	private int written;
+	private int deleted;
+	private Logger logger = Logger.getLogger(SourceTree.class);
+
+	public SourceTree(File directory, File pristineDirectory) throws IOException {
+		this.directory = directory;
+		this.pristineDirectory = pristineDirectory;
+		this.pristineFiles = new HashSet<String>();
+		this.touchedFiles = new HashSet<String>();
+		listFiles(pristineDirectory, pristineFiles);
+	}
+
+	public void apply(Variant variant) throws IOException {
+		written = deleted = 0;
+		Set<String> touched = new HashSet<String>();
+
+		if(variant.isComplete()) {
+			Set<String> obsolete = new HashSet<String>(pristineFiles);
+			obsolete.addAll(touchedFiles);
+			obsolete.removeAll(variant.getFiles().keySet());
+
+			for(String path : obsolete) {
+				if(delete(path))
+					touched.add(path);
+			}
+
+			// The files a complete variant leaves untouched may still differ from the pristine copy
+			touched.addAll(touchedFiles);
+		}
+		else {
+			for(String path : touchedFiles) {
+				if(!variant.getFiles().containsKey(path) && !variant.getDeletedFiles().contains(path))
+					restore(path);
+			}
+
+			for(String path : variant.getDeletedFiles()) {
+				delete(path);
+				touched.add(path);
+			}
+		}
+
+		for(String path : variant.getFiles().keySet()) {
+			write(path, variant.getFiles().get(path));
+			touched.add(path);
+		}
+
+		touchedFiles = touched;
+		logger.info(variant.getName() + " applied: " + written + " files written, " + deleted + " deleted");
+	}
+
+	/**
+	 * Brings the live directory back to the pristine sources.
+	 */
+	public void reset() throws IOException {
+		for(String path : touchedFiles)
+			restore(path);
+
+		touchedFiles.clear();
+	}
+
+	private void restore(String path) throws IOException {
+		if(pristineFiles.contains(path))
+			write(path, getPristineContents(path));
+		else
+			delete(path);
+	}
+
+	/**
+	 * Writes the file only if its contents change. The new contents go to a
+	 * temporary file that replaces the old one, so files hard-linked from
+	 * elsewhere are never modified in place.
+	 */
+	public boolean write(String path, byte[] contents) throws IOException {
+		File target = resolve(path);
+
+		if(target.isFile() && target.length() == contents.length && sameContents(target, contents))
+			return false;
+
+		target.getParentFile().mkdirs();
+		Path temporary = Files.createTempFile(target.getParentFile().toPath(), ".variant", ".tmp");
+
+		try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		written++;
+		return true;
+	}
+
+	private boolean delete(String path) throws IOException {
+		if(Files.deleteIfExists(resolve(path).toPath())) {
+			deleted++;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * The file of the live directory at the given path. Paths that leave
+	 * the directory are rejected, whichever way the variant was received.
+	 */
+	private File resolve(String path) throws IOException {
+		return new File(directory, DeltaUtils.normalize(path));
+	}
+
+	private static boolean sameContents(File file, byte[] contents) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(contents.length);
+			while(buffer.hasRemaining() && channel.read(buffer) != -1);
+			return Arrays.equals(buffer.array(), contents);
+		}
+	}
+
+	private void listFiles(File node, Set<String> files) {
+		if(node.isDirectory()) {
+			for(File child : node.listFiles())
+				listFiles(child, files);
+		}
+		else if(node.isFile())
+			files.add(pristineDirectory.toPath().relativize(node.toPath()).toString().replace(File.separatorChar, '/'));
+	}
+
+	/**
+	 * Contents of a pristine file, read from disk only the first time.
+	 */
+	public byte[] getPristineContents(String path) throws IOException {
+		byte[] contents = pristineContents.get(path);
+
+		if(contents == null) {
+			contents = Files.readAllBytes(new File(pristineDirectory, path).toPath());
+			pristineContents.put(path, contents);
+		}
+
+		return contents;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public File getPristineDirectory() {
+		return pristineDirectory;
+	}
+
+	public Set<String> getPristineFiles() {
+		return pristineFiles;
+	}
+}
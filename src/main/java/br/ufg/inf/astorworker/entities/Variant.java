@@ -0,0 +1,92 @@
+package br.ufg.inf.astorworker.entities;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A program variant as received from the host. A complete variant holds
+ * every file of the source tree, otherwise it only holds the files that
+ * differ from the pristine sources plus the ones it deletes.
+ */
+public class Variant {
+	private String name;
+	private boolean complete;
+	private Map<String, byte[]> files;
+	private Set<String> deletedFiles;
+	private File classesDirectory;
+	private String bytecodeHash;
+	private boolean equivalentToPristine;
+
+	public Variant(String name, boolean complete) {
+		this.name = name;
+		this.complete = complete;
+		this.files = new HashMap<String, byte[]>();
+		this.deletedFiles = new HashSet<String>();
+	}
+
+	public void addFile(String path, byte[] contents) {
+		files.put(path, contents);
+	}
+
+	public void deleteFile(String path) {
+		deletedFiles.add(path);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public Map<String, byte[]> getFiles() {
+		return files;
+	}
+
+	public Set<String> getDeletedFiles() {
+		return deletedFiles;
+	}
+
+	/**
+	 * Where the variant was compiled to, if it was compiled by the worker.
+	 */
+	public File getClassesDirectory() {
+		return classesDirectory;
+	}
+
+	public void setClassesDirectory(File classesDirectory) {
+		this.classesDirectory = classesDirectory;
+	}
+
+	/**
+	 * Hash of the classes the worker compiled for the variant, without debug
+	 * attributes. Null if the variant was not compiled by the worker.
+	 */
+	public String getBytecodeHash() {
+		return bytecodeHash;
+	}
+
+	public void setBytecodeHash(String bytecodeHash) {
+		this.bytecodeHash = bytecodeHash;
+	}
+
+	/**
+	 * True if the variant compiles to the same classes as the pristine sources.
+	 */
+	public boolean isEquivalentToPristine() {
+		return equivalentToPristine;
+	}
+
+	public void setEquivalentToPristine(boolean equivalentToPristine) {
+		this.equivalentToPristine = equivalentToPristine;
+	}
+
+	@Override
+	public String toString() {
+		return "Variant = [name: " + name + ", complete: " + complete + ", files: " + files.size() + ", deleted: " + deletedFiles.size() + "]";
+	}
+}
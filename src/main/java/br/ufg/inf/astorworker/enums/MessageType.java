@@ -0,0 +1,48 @@
+package br.ufg.inf.astorworker.enums;
+
+/**
+ * Message types carried by the framed protocol. The commands mirror the
+ * ones of the line protocol, the remaining types are worker replies.
+ */
+public enum MessageType {
+	HELLO(0),
+	PROCESS_VARIANT(1),
+	SEND_PROJECT_NAME(2),
+	SEND_PROJECT(3),
+	SEND_FAILING_TEST(4),
+	FAULT_LOCALIZATION(5),
+	END_FAULT_LOCALIZATION(6),
+	END(7),
+	PROCESS_VARIANT_DELTA(8),
+	PROJECT_MANIFEST(9),
+	VARIANT_MANIFEST(10),
+	BLOBS(11),
+	FAULT_LOCALIZATION_BATCH(12),
+	PROCESS_VARIANTS(13),
+	ACK(64),
+	VALIDATION_RESULT(65),
+	CANDIDATES(66),
+	BLOB_REQUEST(67),
+	TEST_CANDIDATES(68),
+	VARIANT_RESULT(69),
+	ERROR(127);
+
+	private final byte code;
+
+	MessageType(int code) {
+		this.code = (byte) code;
+	}
+
+	public byte getCode() {
+		return code;
+	}
+
+	public static MessageType fromCode(byte code) {
+		for(MessageType type : values()) {
+			if(type.code == code)
+				return type;
+		}
+
+		throw new IllegalArgumentException("Unknown message type: " + code);
+	}
+}
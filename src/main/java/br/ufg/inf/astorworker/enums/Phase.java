@@ -0,0 +1,22 @@
+package br.ufg.inf.astorworker.enums;
+
+/**
+ * Phases of the work of the worker that are given a time limit, each by
+ * its own property, in seconds.
+ */
+public enum Phase {
+	COMPILE("compiletimeout"),
+	FAILING_TESTS("failingtimeout"),
+	REGRESSION("regressiontimeout"),
+	FAULT_LOCALIZATION("fltimeout");
+
+	private final String property;
+
+	Phase(String property) {
+		this.property = property;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+}
@@ -0,0 +1,33 @@
+package br.ufg.inf.astorworker.enums;
+
+/**
+ * Spectrum based suspiciousness formulas. ef/ep are the failing/passing
+ * tests that executed a line, nf/np the ones that did not.
+ */
+public enum SuspiciousnessFormula {
+	OCHIAI {
+		public double compute(int ef, int ep, int nf, int np) {
+			double denominator = Math.sqrt((double) (ef + nf) * (ef + ep));
+			return denominator == 0 ? 0 : ef / denominator;
+		}
+	},
+
+	TARANTULA {
+		public double compute(int ef, int ep, int nf, int np) {
+			double failing = (ef + nf) == 0 ? 0 : (double) ef / (ef + nf);
+			double passing = (ep + np) == 0 ? 0 : (double) ep / (ep + np);
+			return (failing + passing) == 0 ? 0 : failing / (failing + passing);
+		}
+	},
+
+	/* D* with the usual exponent 2. A line executed only by failing tests gets the highest score. */
+	DSTAR {
+		public double compute(int ef, int ep, int nf, int np) {
+			if(ep + nf == 0)
+				return ef == 0 ? 0 : Double.MAX_VALUE;
+			return (double) ef * ef / (ep + nf);
+		}
+	};
+
+	public abstract double compute(int ef, int ep, int nf, int np);
+}
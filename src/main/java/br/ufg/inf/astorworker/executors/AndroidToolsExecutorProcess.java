@@ -1,7 +1,9 @@
 package br.ufg.inf.astorworker.executors;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.io.File;
 import java.io.IOException;
 import java.io.BufferedReader;
@@ -13,6 +15,7 @@ import org.apache.log4j.Logger;
 
 import fr.inria.astor.core.setup.ConfigurationProperties;
 import br.inf.ufg.astorworker.utils.FileSystemUtils;
+import br.ufg.inf.astorworker.utils.ProcessUtils;
 
 
 /**
@@ -47,7 +50,7 @@ public class AndroidToolsExecutorProcess {
 
 	public static void compileProject(String projectLocation) throws InterruptedException, IOException, IllegalStateException  {
 		logger.info("Compiling project");
-		List<String> output = CommandExecutorProcess.execute(GRADLE + " build -x test", projectLocation);
+		List<String> output = gradle("build -x test", projectLocation, deviceEnvironment(null));
 
 		// Checking if the execution was successful
 		boolean success = searchForString(output, "BUILD SUCCESSFUL");
@@ -62,26 +65,30 @@ public class AndroidToolsExecutorProcess {
 
 	
 	public static List<String> runGradleTask(String projectLocation, String gradleTask, boolean compileDependencies) throws InterruptedException, IOException, IllegalStateException  {
-		logger.info("Running gradle task \"" + gradleTask + "\"");
+		return runGradleTask(projectLocation, gradleTask, compileDependencies, null);
+	}
+
+	public static List<String> runGradleTask(String projectLocation, String gradleTask, boolean compileDependencies, String device) throws InterruptedException, IOException, IllegalStateException  {
+		logger.info("Running gradle task \"" + gradleTask + "\"" + onDevice(device));
 		
 		List<String> output;
 		if(compileDependencies)
-			output = CommandExecutorProcess.execute(GRADLE + " " + gradleTask, projectLocation);
+			output = gradle(gradleTask, projectLocation, deviceEnvironment(device));
 		else
-			output = CommandExecutorProcess.execute(GRADLE + " -a " + gradleTask, projectLocation);
+			output = gradle("-a " + gradleTask, projectLocation, deviceEnvironment(device));
 
 		// TODO: find a way the check successfulness
 		return output;
 	}
 
-	public static void uninstallPackage(String appPackage) throws InterruptedException, IOException, IllegalStateException {
-		List<String> output = CommandExecutorProcess.execute(ADB + " uninstall " + appPackage, PLATFORM_TOOLS);
+	public static void uninstallPackage(String appPackage, String device) throws InterruptedException, IOException, IllegalStateException {
+		List<String> output = CommandExecutorProcess.execute(ADB + deviceArgument(device) + " uninstall " + appPackage, PLATFORM_TOOLS);
 
 		// Emulator bug workaround
 		if(searchForString(output, "Can't find service: package") || searchForString(output, "error: device offline")){
-			logger.info("The android emulator had a problem. Restarting adb...");
-			restartADB();
-			uninstallPackage(appPackage);
+			logger.info("The android emulator had a problem" + onDevice(device) + ". Reconnecting...");
+			recoverDevice(device);
+			uninstallPackage(appPackage, device);
 			return;
 		}
 
@@ -93,33 +100,33 @@ public class AndroidToolsExecutorProcess {
 			throw new IllegalStateException("Could not uninstall "+appPackage);
 		}
 		
-		logger.info("Successfully uninstalled "+appPackage);
+		logger.info("Successfully uninstalled " + appPackage + onDevice(device));
 	}
 
-	public static List<String> runUnitTests(String projectLocation, String task, List<String> classesToExecute) throws InterruptedException, IOException, IllegalStateException {
+	public static List<String> runUnitTests(String projectLocation, String task, List<String> classesToExecute, TestOutputMonitor monitor) throws InterruptedException, IOException, IllegalStateException {
 		String testsToRun = String.join(",",classesToExecute);
 		logger.info("Running unit tests: " + testsToRun);
 
-		String command = GRADLE + " --continue " + task + " ";
+		String command = "--continue " + task + " ";
 
 		for(String unitTest : classesToExecute)
 			command += "--tests=" + unitTest.replaceAll("#", "\\.") + " ";
 		
-		List<String> output = CommandExecutorProcess.execute(command, projectLocation);
+		List<String> output = gradle(command, projectLocation, deviceEnvironment(null), monitor);
 		return output;
 	}
 
-	public static List<String> runUnitTests(String projectLocation, String task) throws InterruptedException, IOException, IllegalStateException {
-		List<String> output = CommandExecutorProcess.execute(GRADLE + " --continue " + task, projectLocation);
+	public static List<String> runUnitTests(String projectLocation, String task, TestOutputMonitor monitor) throws InterruptedException, IOException, IllegalStateException {
+		List<String> output = gradle("--continue " + task, projectLocation, deviceEnvironment(null), monitor);
 		return output;
 	}
 
 
-	public static List<String> runInstrumentationTests(String projectLocation, String task, List<String> classesToExecute) throws InterruptedException, IOException, IllegalStateException {
+	public static List<String> runInstrumentationTests(String projectLocation, String task, List<String> classesToExecute, String device, TestOutputMonitor monitor) throws InterruptedException, IOException, IllegalStateException {
 		String testsToRun = String.join(",",classesToExecute);
-		logger.info("Running instrumentation tests: " + testsToRun);
+		logger.info("Running instrumentation tests: " + testsToRun + onDevice(device));
 
-		List<String> output = CommandExecutorProcess.execute(GRADLE + " --continue -Pandroid.testInstrumentationRunnerArguments.class=" + testsToRun + " -i " + task, projectLocation);
+		List<String> output = gradle("--continue -Pandroid.testInstrumentationRunnerArguments.class=" + testsToRun + " -i " + task, projectLocation, deviceEnvironment(device), monitor);
 
 		// Checking if the execution was successful
 		boolean errorOccurred = searchForString(output, "INSTRUMENTATION_FAILED");
@@ -131,9 +138,9 @@ public class AndroidToolsExecutorProcess {
 		
 		// Emulator bug workaround
 		if(searchForString(output, "Can't find service: package") || searchForString(output, "error: device offline")){
-			logger.info("The android emulator had a problem. Restarting adb...");
-			restartADB();
-			return runInstrumentationTests(projectLocation, task, classesToExecute);
+			logger.info("The android emulator had a problem" + onDevice(device) + ". Reconnecting...");
+			recoverDevice(device);
+			return runInstrumentationTests(projectLocation, task, classesToExecute, device, monitor);
 		}
 
 		logger.info("Status: SUCCESSFUL");
@@ -141,10 +148,10 @@ public class AndroidToolsExecutorProcess {
 	}
 
 	
-	public static List<String> runInstrumentationTests(String projectLocation, String task) throws InterruptedException, IOException, IllegalStateException {
-		logger.info("Running all instrumentation tests");
+	public static List<String> runInstrumentationTests(String projectLocation, String task, String device, TestOutputMonitor monitor) throws InterruptedException, IOException, IllegalStateException {
+		logger.info("Running all instrumentation tests" + onDevice(device));
 
-		List<String> output = CommandExecutorProcess.execute(GRADLE + " -i --continue " + task, projectLocation);
+		List<String> output = gradle("-i --continue " + task, projectLocation, deviceEnvironment(device), monitor);
 
 		// Checking if the execution was successful
 		boolean errorOccurred = searchForString(output, "INSTRUMENTATION_FAILED");
@@ -156,15 +163,144 @@ public class AndroidToolsExecutorProcess {
 		
 		// Emulator bug workaround
 		if(searchForString(output, "Can't find service: package") || searchForString(output, "error: device offline")){
-			logger.info("The android emulator had a problem. Restarting adb...");
-			restartADB();
-			return runInstrumentationTests(projectLocation, task);
+			logger.info("The android emulator had a problem" + onDevice(device) + ". Reconnecting...");
+			recoverDevice(device);
+			return runInstrumentationTests(projectLocation, task, device, monitor);
 		}
 
 		logger.info("Status: SUCCESSFUL");
 		return output;
 	}
 
+	/**
+	 * Serials of the devices and emulators ready to run tests.
+	 */
+	public static List<String> listDevices() throws InterruptedException, IOException {
+		List<String> output = CommandExecutorProcess.execute(ADB + " devices", PLATFORM_TOOLS);
+		List<String> devices = new ArrayList<String>();
+
+		for(String line : output) {
+			String[] tokens = line.trim().split("\\s+");
+
+			if(tokens.length == 2 && tokens[1].equals("device"))
+				devices.add(tokens[0]);
+		}
+
+		return devices;
+	}
+
+	/**
+	 * Builds the app and its instrumentation tests and installs both on the
+	 * device, so they can be run with "am instrument".
+	 */
+	public static void installForTesting(String projectLocation, String installTasks, String device) throws InterruptedException, IOException, IllegalStateException {
+		logger.info("Installing the app and its tests" + onDevice(device));
+		List<String> output = gradle(installTasks, projectLocation, deviceEnvironment(device));
+
+		if(!searchForString(output, "BUILD SUCCESSFUL")) {
+			logger.error("Failed to install the app" + onDevice(device) + ", output:\n\t" + String.join("\n", output));
+			throw new IllegalStateException("Could not install the app" + onDevice(device));
+		}
+	}
+
+	/**
+	 * Finds the instrumentation, "testPackage/runner", installed on the
+	 * device for the test package.
+	 */
+	public static String findInstrumentation(String testPackage, String device) throws InterruptedException, IOException, IllegalStateException {
+		List<String> output = CommandExecutorProcess.execute(ADB + deviceArgument(device) + " shell pm list instrumentation", PLATFORM_TOOLS);
+
+		for(String line : output) {
+			line = line.trim();
+
+			if(line.startsWith("instrumentation:" + testPackage + "/"))
+				return line.substring("instrumentation:".length()).split(" ")[0];
+		}
+
+		throw new IllegalStateException("No instrumentation installed for " + testPackage + onDevice(device));
+	}
+
+	/**
+	 * Runs one shard of the instrumentation tests. The output is the raw
+	 * status of every test, as printed by "am instrument -r".
+	 */
+	public static List<String> runInstrumentationShard(String instrumentation, int shards, int shard, String device, TestOutputMonitor monitor) throws InterruptedException, IOException, IllegalStateException {
+		logger.info("Running instrumentation shard " + (shard + 1) + "/" + shards + onDevice(device));
+
+		List<String> output = CommandExecutorProcess.execute(ADB + deviceArgument(device) + " shell am instrument -w -r -e numShards " + shards 
+				+ " -e shardIndex " + shard + " " + instrumentation, PLATFORM_TOOLS, Collections.<String, String>emptyMap(), monitor);
+
+		if(searchForString(output, "INSTRUMENTATION_FAILED")){
+			logger.error("Failed to run instrumentation shard " + (shard + 1) + "/" + shards + ", output:\n\t" + String.join("\n", output));
+			throw new IllegalStateException("Could not run instrumentation tests");
+		}
+
+		// Emulator bug workaround
+		if(searchForString(output, "Can't find service: package") || searchForString(output, "error: device offline")){
+			logger.info("The android emulator had a problem" + onDevice(device) + ". Reconnecting...");
+			recoverDevice(device);
+			return runInstrumentationShard(instrumentation, shards, shard, device, monitor);
+		}
+
+		return output;
+	}
+
+	private static List<String> gradle(String arguments, String projectLocation, Map<String, String> environment) throws InterruptedException, IOException {
+		return gradle(arguments, projectLocation, environment, null);
+	}
+
+	/**
+	 * Runs a gradlew command line in the project, through its warm build
+	 * session when "buildsession" is enabled. Test runs are watched by their
+	 * monitor, which stops them once their outcome is decided. A run that is
+	 * stopped, or that times out, also gets the test JVMs of the daemon
+	 * killed, since they do not belong to the process tree of gradlew.
+	 */
+	private static List<String> gradle(String arguments, String projectLocation, Map<String, String> environment, TestOutputMonitor monitor) throws InterruptedException, IOException {
+		List<String> output;
+
+		try {
+			if(ConfigurationProperties.getPropertyBool("buildsession"))
+				output = BuildSession.forProject(projectLocation).run(arguments, environment, monitor);
+
+			else if(monitor != null)
+				output = CommandExecutorProcess.execute(GRADLE + " " + arguments, projectLocation, environment, monitor);
+
+			else output = CommandExecutorProcess.execute(GRADLE + " " + arguments, projectLocation, environment);
+		} catch(ProcessTimeoutException e) {
+			killWorkers(projectLocation);
+			throw e;
+		}
+
+		if(monitor != null && monitor.isDecided())
+			killWorkers(projectLocation);
+
+		return output;
+	}
+
+	private static void killWorkers(String projectLocation) {
+		int killed = ProcessUtils.killGradleWorkers(new File(projectLocation));
+
+		if(killed > 0)
+			logger.info(killed + " Gradle test JVMs of " + projectLocation + " killed");
+	}
+
+	/* A null or empty serial leaves the choice of the device to adb */
+	private static Map<String, String> deviceEnvironment(String device) {
+		if(device == null || device.isEmpty())
+			return Collections.emptyMap();
+
+		return Collections.singletonMap("ANDROID_SERIAL", device);
+	}
+
+	private static String deviceArgument(String device) {
+		return device == null || device.isEmpty() ? "" : " -s " + device;
+	}
+
+	private static String onDevice(String device) {
+		return device == null || device.isEmpty() ? "" : " on " + device;
+	}
+
 	private static boolean searchForString(List<String> outputFromCommand, String str){
 		for(String entry : outputFromCommand){
 			if(entry.contains(str))
@@ -174,10 +310,21 @@ public class AndroidToolsExecutorProcess {
 		return false;
 	}
 
-	private static void restartADB() throws IOException, InterruptedException {
-		CommandExecutorProcess.execute(ADB + " kill-server", PLATFORM_TOOLS);
-		CommandExecutorProcess.execute(ADB + " start-server", PLATFORM_TOOLS);
-		logger.info("Adb restarted!");
+	/*
+	 * Reconnects only the failing device, since restarting the adb server
+	 * would break the runs in flight on every other device of the pool.
+	 * Without a serial adb picks the device, so the server is restarted.
+	 */
+	private static void recoverDevice(String device) throws IOException, InterruptedException {
+		if(device == null || device.isEmpty()) {
+			CommandExecutorProcess.execute(ADB + " kill-server", PLATFORM_TOOLS);
+			CommandExecutorProcess.execute(ADB + " start-server", PLATFORM_TOOLS);
+			logger.info("Adb restarted!");
+			return;
+		}
+
+		CommandExecutorProcess.execute(ADB + deviceArgument(device) + " reconnect", PLATFORM_TOOLS);
+		logger.info(device + " reconnected");
 	}
 
 
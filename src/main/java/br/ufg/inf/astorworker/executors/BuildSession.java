@@ -0,0 +1,271 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.gradle.tooling.BuildCancelledException;
+import org.gradle.tooling.BuildException;
+import org.gradle.tooling.CancellationTokenSource;
+import org.gradle.tooling.BuildLauncher;
+import org.gradle.tooling.GradleConnectionException;
+import org.gradle.tooling.GradleConnector;
+import org.gradle.tooling.ProjectConnection;
+import org.gradle.tooling.events.OperationType;
+import org.gradle.tooling.events.ProgressEvent;
+import org.gradle.tooling.events.test.JvmTestOperationDescriptor;
+import org.gradle.tooling.events.test.TestFailureResult;
+import org.gradle.tooling.events.test.TestFinishEvent;
+import org.gradle.tooling.events.test.TestSuccessResult;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+
+/**
+ * A warm connection to the Gradle daemon of one project directory, kept
+ * open between builds, so tasks run without starting a gradlew client and
+ * without waiting for a cold daemon. The output of a build is captured in
+ * memory and every test method run by Gradle adds a line after it:
+ *
+ * <pre>
+ * TEST_EVENT &lt;tab&gt; class#method &lt;tab&gt; PASSED|FAILED
+ * </pre>
+ *
+ * The connection and the daemons it started are recycled after
+ * "buildsessionbuilds" builds, or when the heap of the worker gets full.
+ * A build can be watched by a test output monitor, which gets the output
+ * and test events as they come and cancels the build once it has decided
+ * the outcome. A build that runs out of time is cancelled by the watchdog,
+ * which also stops its test JVMs.
+ */
+public class BuildSession {
+	public static final String TEST_EVENT = "TEST_EVENT\t";
+	private static final double MAX_HEAP_USAGE = 0.8;
+	private static Map<String, BuildSession> sessions = new HashMap<String, BuildSession>();
+	private static Logger logger = Logger.getLogger(BuildSession.class);
+	private File projectDirectory;
+	private GradleConnector connector;
+	private ProjectConnection connection;
+	private int builds;
+
+	private BuildSession(File projectDirectory) {
+		this.projectDirectory = projectDirectory;
+	}
+
+	/**
+	 * The session of the project, or of the slot, at the given location.
+	 */
+	public static synchronized BuildSession forProject(String projectLocation) {
+		BuildSession session = sessions.get(projectLocation);
+
+		if(session == null) {
+			session = new BuildSession(new File(projectLocation));
+			sessions.put(projectLocation, session);
+		}
+
+		return session;
+	}
+
+	public static synchronized void closeAll() {
+		for(BuildSession session : sessions.values())
+			session.close();
+
+		sessions.clear();
+	}
+
+	/**
+	 * Runs a gradlew command line, such as "--continue -i connectedAndroidTest",
+	 * and returns its output. A failing build is not an error: as with
+	 * gradlew, its output tells what failed.
+	 */
+	public List<String> run(String command, Map<String, String> environment) throws IOException {
+		return run(command, environment, null);
+	}
+
+	/**
+	 * Runs the command like run, handing its output and test events to the
+	 * monitor while the build runs. The build is cancelled as soon as the
+	 * monitor has decided the outcome.
+	 */
+	public synchronized List<String> run(String command, Map<String, String> environment, TestOutputMonitor monitor) throws IOException {
+		long t_start = System.currentTimeMillis();
+		CancellationTokenSource cancellation = GradleConnector.newCancellationTokenSource();
+		ByteArrayOutputStream standard = new MonitoredOutputStream(monitor, cancellation);
+		ByteArrayOutputStream error = new ByteArrayOutputStream();
+		List<String> testEvents = Collections.synchronizedList(new ArrayList<String>());
+
+		if(connection == null)
+			connect();
+
+		BuildLauncher build = connection.newBuild();
+		setCommand(build, command);
+		build.setStandardOutput(standard);
+		build.setStandardError(error);
+		build.withCancellationToken(cancellation.token());
+		build.addProgressListener((ProgressEvent event) -> recordTest(event, testEvents, monitor, cancellation), OperationType.TEST);
+
+		// The variables replace the whole environment of the build
+		if(!environment.isEmpty()) {
+			Map<String, String> variables = new HashMap<String, String>(System.getenv());
+			variables.putAll(environment);
+			build.setEnvironmentVariables(variables);
+		}
+
+		Watchdog.Watch watch = Watchdog.watch(cancellation::cancel, command);
+
+		try {
+			build.run();
+		} catch(BuildCancelledException e) {
+			if(!watch.hasExpired())
+				logger.debug("Outcome decided, build \"" + command + "\" cancelled");
+		} catch(BuildException e) {
+			logger.debug("Build \"" + command + "\" failed: " + e.getMessage());
+		} catch(GradleConnectionException | IllegalStateException e) {
+			close();
+			throw new IOException("Could not run \"" + command + "\" in " + projectDirectory + ": " + e.getMessage(), e);
+		} finally {
+			watch.close();
+		}
+
+		List<String> output = new ArrayList<String>();
+		output.addAll(lines(standard));
+		output.addAll(lines(error));
+		output.addAll(testEvents);
+
+		builds++;
+		recycleIfNeeded();
+
+		long t_end = System.currentTimeMillis();
+		logger.debug("Execution time " + ((t_end - t_start) / 1000) + " seconds");
+		return output;
+	}
+
+	public synchronized void close() {
+		if(connection == null)
+			return;
+
+		connection.close();
+		connector.disconnect();
+		connection = null;
+		builds = 0;
+	}
+
+	private void connect() {
+		logger.info("Opening a build session for " + projectDirectory);
+		connector = GradleConnector.newConnector().forProjectDirectory(projectDirectory);
+		connection = connector.connect();
+	}
+
+	private void recycleIfNeeded() {
+		Runtime runtime = Runtime.getRuntime();
+		double heapUsage = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+
+		if(builds >= ConfigurationProperties.getPropertyInt("buildsessionbuilds") || heapUsage > MAX_HEAP_USAGE) {
+			logger.info("Recycling the build session of " + projectDirectory + " after " + builds + " builds");
+			close();
+		}
+	}
+
+	/* Options are the tokens starting with "-", plus the task following "-x" */
+	private static void setCommand(BuildLauncher build, String command) {
+		List<String> tasks = new ArrayList<String>();
+		List<String> arguments = new ArrayList<String>();
+		List<String> tokens = Arrays.asList(command.trim().split("\\s+"));
+
+		for(int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+
+			if(token.equals("-x") && i + 1 < tokens.size()) {
+				arguments.add(token);
+				arguments.add(tokens.get(++i));
+			}
+			else if(token.startsWith("-"))
+				arguments.add(token);
+			else
+				tasks.add(token);
+		}
+
+		build.forTasks(tasks.toArray(new String[tasks.size()]));
+		build.withArguments(arguments);
+	}
+
+	private static void recordTest(ProgressEvent event, List<String> testEvents, TestOutputMonitor monitor, CancellationTokenSource cancellation) {
+		if(!(event instanceof TestFinishEvent) || !(event.getDescriptor() instanceof JvmTestOperationDescriptor))
+			return;
+
+		JvmTestOperationDescriptor test = (JvmTestOperationDescriptor) event.getDescriptor();
+		if(test.getMethodName() == null)
+			return;
+
+		Object result = ((TestFinishEvent) event).getResult();
+		String name = test.getClassName() + "#" + test.getMethodName();
+
+		String line;
+		if(result instanceof TestSuccessResult)
+			line = TEST_EVENT + name + "\tPASSED";
+		else if(result instanceof TestFailureResult)
+			line = TEST_EVENT + name + "\tFAILED";
+		else
+			return;
+
+		testEvents.add(line);
+		monitor(monitor, line, cancellation);
+	}
+
+	private static void monitor(TestOutputMonitor monitor, String line, CancellationTokenSource cancellation) {
+		if(monitor == null || cancellation.token().isCancellationRequested())
+			return;
+
+		try {
+			monitor.onLine(line);
+		} catch(Exception e) {
+			logger.warn("Could not monitor the build output: " + e);
+		}
+
+		if(monitor.isDecided())
+			cancellation.cancel();
+	}
+
+	/* Keeps the output and hands every complete line to the monitor */
+	private static class MonitoredOutputStream extends ByteArrayOutputStream {
+		private TestOutputMonitor monitor;
+		private CancellationTokenSource cancellation;
+		private int lineStart;
+
+		private MonitoredOutputStream(TestOutputMonitor monitor, CancellationTokenSource cancellation) {
+			this.monitor = monitor;
+			this.cancellation = cancellation;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			super.write(b);
+			if(b == '\n')
+				endLine();
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			for(int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+
+		private void endLine() {
+			String line = new String(buf, lineStart, count - lineStart, StandardCharsets.UTF_8).replaceAll("\\r?\\n$", "");
+			lineStart = count;
+			monitor(monitor, line, cancellation);
+		}
+	}
+
+	private static List<String> lines(ByteArrayOutputStream stream) {
+		String text = new String(stream.toByteArray(), StandardCharsets.UTF_8);
+		return text.isEmpty() ? new ArrayList<String>() : Arrays.asList(text.split("\\r?\\n"));
+	}
+}
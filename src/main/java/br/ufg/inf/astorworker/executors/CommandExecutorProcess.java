@@ -5,35 +5,103 @@ import java.io.FileReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import org.apache.log4j.Logger;
 
+import br.ufg.inf.astorworker.utils.ProcessUtils;
+
 public class CommandExecutorProcess  {
 	private static Logger logger = Logger.getLogger(CommandExecutorProcess.class);
 
 	public static List<String> execute(String command, String location) throws IOException, InterruptedException {
+		return execute(command, location, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Runs the command with the given variables added to the environment.
+	 */
+	public static List<String> execute(String command, String location, Map<String, String> environment) throws IOException, InterruptedException {
 		long t_start = System.currentTimeMillis();
 		ProcessBuilder pb = new ProcessBuilder(command.split(" "));
 		File errorFile = File.createTempFile("error", ".tmp");
 		File standardFile = File.createTempFile("standard", ".tmp");
 		pb.redirectOutput(standardFile);
 		pb.redirectError(errorFile);	
+		pb.environment().putAll(environment);
 
 		
 		pb.directory(new File(location));
 		Process p = pb.start();
-		p.waitFor();
-		p.exitValue();
+		Watchdog.Watch watch = Watchdog.watch(p, command);
+
+		List<String> output = new ArrayList<String>();
+
+		try {
+			p.waitFor();
+
+			// Getting output
+			output = addOutput(standardFile, output);
+			output = addOutput(errorFile, output);
+		} finally {
+			p.destroy();
+			standardFile.delete();
+			errorFile.delete();
+			watch.close();
+		}
+
+		long t_end = System.currentTimeMillis();
+		logger.debug("Execution time " + ((t_end - t_start) / 1000) + " seconds");
+		return output;
+	}
 
+	/**
+	 * Runs the command with standard error merged into standard output and
+	 * returns the output, like execute, but hands every line to the monitor
+	 * as soon as it is printed. Once the monitor has decided the outcome,
+	 * the process and everything it started are killed and the lines read
+	 * so far are returned.
+	 */
+	public static List<String> execute(String command, String location, Map<String, String> environment, TestOutputMonitor monitor) throws IOException, InterruptedException {
+		long t_start = System.currentTimeMillis();
+		ProcessBuilder pb = new ProcessBuilder(command.split(" "));
+		pb.redirectErrorStream(true);
+		pb.environment().putAll(environment);
+		pb.directory(new File(location));
+		Process p = pb.start();
+		Watchdog.Watch watch = Watchdog.watch(p, command);
 
-		// Getting output
 		List<String> output = new ArrayList<String>();
-		output = addOutput(standardFile, output);
-		output = addOutput(errorFile, output);
-		
-		p.destroy();
+
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line = null;
+
+			while ((line = br.readLine()) != null) {
+				output.add(line);
+				monitor.onLine(line);
+
+				if (monitor.isDecided()) {
+					logger.debug("Outcome decided, stopping \"" + command + "\"");
+					ProcessUtils.killTree(p);
+					break;
+				}
+			}
+
+			br.close();
+			p.waitFor();
+		} catch (IOException | InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not read the output of \"" + command + "\": " + e.getMessage(), e);
+		} finally {
+			p.destroy();
+			watch.close();
+		}
 
 		long t_end = System.currentTimeMillis();
 		logger.debug("Execution time " + ((t_end - t_start) / 1000) + " seconds");
@@ -49,22 +117,59 @@ public class CommandExecutorProcess  {
 		pb.redirectError(errorFile);
 
 		Process p = pb.start();
-		p.waitFor();
-		p.exitValue();
-
+		Watchdog.Watch watch = Watchdog.watch(p, command);
 
-		// Getting output
 		List<String> output = new ArrayList<String>();
-		output = addOutput(standardFile, output);
-		output = addOutput(errorFile, output);
-		
-		p.destroy();
+
+		try {
+			p.waitFor();
+
+			// Getting output
+			output = addOutput(standardFile, output);
+			output = addOutput(errorFile, output);
+		} finally {
+			p.destroy();
+			standardFile.delete();
+			errorFile.delete();
+			watch.close();
+		}
 
 		long t_end = System.currentTimeMillis();
 		logger.debug("Execution time " + ((t_end - t_start) / 1000) + " seconds");
 		return output;
 	}
 
+	/**
+	 * Runs the command with standard error merged into standard output and
+	 * hands every line to the listener as soon as it is printed.
+	 */
+	public static int execute(List<String> command, String location, OutputListener listener) throws Exception {
+		long t_start = System.currentTimeMillis();
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		pb.directory(new File(location));
+		Process p = pb.start();
+		Watchdog.Watch watch = Watchdog.watch(p, String.join(" ", command));
+
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line = null;
+
+			while ((line = br.readLine()) != null)
+				listener.onLine(line);
+
+			br.close();
+			p.waitFor();
+		} finally {
+			p.destroy();
+			watch.close();
+		}
+
+		long t_end = System.currentTimeMillis();
+		logger.debug("Execution time " + ((t_end - t_start) / 1000) + " seconds");
+		return p.exitValue();
+	}
+
 	private static List<String> addOutput(File file, List<String> out) throws IOException {
 		try {
 			BufferedReader br = new BufferedReader(new FileReader(file));
@@ -0,0 +1,93 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+
+/**
+ * Devices and emulators available to run instrumentation tests. A device
+ * runs one test run at a time: it is taken from the pool before the run
+ * and given back after it. If adb lists no device the pool holds a single
+ * empty serial, which leaves the choice of the device to adb.
+ */
+public class DevicePool {
+	private static DevicePool instance = null;
+	private List<String> devices;
+	private BlockingQueue<String> freeDevices;
+	private Logger logger = Logger.getLogger(DevicePool.class);
+
+	private DevicePool() {}
+
+	public static DevicePool getInstance() {
+		if(instance == null)
+			instance = new DevicePool();
+
+		return instance;
+	}
+
+	/**
+	 * Discovers the attached devices. When the "devices" property is set
+	 * only the serials it lists are used.
+	 */
+	public void setup() throws Exception {
+		devices = AndroidToolsExecutorProcess.listDevices();
+
+		if(ConfigurationProperties.hasProperty("devices")) {
+			List<String> wanted = Arrays.asList(ConfigurationProperties.getProperty("devices").split(","));
+
+			for(String serial : wanted) {
+				if(!devices.contains(serial))
+					logger.warn("Device " + serial + " is not attached");
+			}
+
+			devices.retainAll(wanted);
+		}
+
+		if(devices.isEmpty()) {
+			logger.warn("No device found, adb will pick one for every test run");
+			devices.add("");
+		}
+		else logger.info("Devices: " + String.join(", ", devices));
+
+		freeDevices = new LinkedBlockingQueue<String>(devices);
+	}
+
+	/**
+	 * Takes a device, waiting until one is free.
+	 */
+	public String acquire() throws InterruptedException {
+		return freeDevices.take();
+	}
+
+	/**
+	 * Takes every free device, waiting until there is at least one.
+	 */
+	public List<String> acquireFree() throws InterruptedException {
+		List<String> acquired = new ArrayList<String>();
+		acquired.add(freeDevices.take());
+		freeDevices.drainTo(acquired);
+		return acquired;
+	}
+
+	public void release(String device) {
+		freeDevices.add(device);
+	}
+
+	public void release(List<String> devices) {
+		freeDevices.addAll(devices);
+	}
+
+	public List<String> getDevices() {
+		return devices;
+	}
+
+	public int size() {
+		return devices.size();
+	}
+}
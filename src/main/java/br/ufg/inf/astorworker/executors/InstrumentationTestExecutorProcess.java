@@ -17,6 +17,8 @@ import org.apache.log4j.Logger;
 import fr.inria.astor.core.validation.entity.TestResult;
 import fr.inria.astor.core.setup.ConfigurationProperties;
 import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.validators.TestPrioritizer;
 
 /**
  * Process-based program variant validation
@@ -25,11 +27,19 @@ import br.ufg.inf.astorworker.entities.AndroidProject;
  * 
  */
 public class  InstrumentationTestExecutorProcess {
+	/* "Class > method[device] FAILED|SUCCESS", colored, as logged by Gradle with -i */
+	public static final Pattern TEST_LINE = Pattern.compile("([a-zA-Z0-9._])+(\\s>\\s)([a-zA-Z0-9._])+(\\[.*?\\]\\s*)(\\e\\[31m|\\e\\[32m)(FAILED|SUCCESS)(\\s\\e\\[0m)\\s*");
 	private Logger logger = Logger.getLogger(InstrumentationTestExecutorProcess.class);
 	boolean avoidInterruption = false;
 	
 
-	public TestResult executeFailingTests(TestResult tr) throws Exception {
+	public TestResult executeFailingTests(TestResult tr, TestOutputMonitor monitor) throws Exception {
+		return executeTests(tr, AndroidProject.getInstance().getFailingInstrumentationTestCases(), monitor);
+	}
+
+	public TestResult executeTests(TestResult tr, List<String> tests, TestOutputMonitor monitor) throws Exception {
+		tests = TestPrioritizer.getInstance().order(TestType.INSTRUMENTATION, tests);
+
 		if(tr == null){
 			tr = new TestResult();
 			tr.casesExecuted = 0;
@@ -38,7 +48,7 @@ public class  InstrumentationTestExecutorProcess {
 
 		try {
 			//Running tests
-			List<String> output = AndroidProject.getInstance().runFailingInstrumentationTests();
+			List<String> output = AndroidProject.getInstance().runInstrumentationTests(tests, monitor);
 
 			tr = getTestResult(tr, output);
 			
@@ -50,7 +60,7 @@ public class  InstrumentationTestExecutorProcess {
 	}
 
 
-	public TestResult executeRegression(TestResult tr) throws Exception {
+	public TestResult executeRegression(TestResult tr, TestOutputMonitor monitor) throws Exception {
 		if(tr == null){
 			tr = new TestResult();
 			tr.casesExecuted = 0;
@@ -59,7 +69,10 @@ public class  InstrumentationTestExecutorProcess {
 
 		try {
 			//Running tests
-			List<String> output = AndroidProject.getInstance().runAllInstrumentationTests();
+			if(AndroidProject.getInstance().shardsInstrumentationTests())
+				return executeShardedRegression(tr, monitor);
+
+			List<String> output = AndroidProject.getInstance().runAllInstrumentationTests(monitor);
 
 			tr = getTestResult(tr, output);
 			
@@ -70,6 +83,65 @@ public class  InstrumentationTestExecutorProcess {
 		return null;
 	}
 
+	/* The results of all shards are added to the same TestResult */
+	private TestResult executeShardedRegression(TestResult tr, TestOutputMonitor monitor) throws Exception {
+		for(List<String> output : AndroidProject.getInstance().runShardedInstrumentationTests(monitor)) {
+			tr = getShardTestResult(tr, output, monitor.isDecided());
+
+			if(tr == null)
+				return null;
+		}
+
+		return tr;
+	}
+
+	/**
+	 * Reads the output of "am instrument -r". Every test prints its class and
+	 * name followed by a status code: 1 when it starts, then 0 if it passed,
+	 * -1 or -2 if it failed and -3 or -4 if it was skipped. Returns null if
+	 * the run did not finish, unless it was stopped once its outcome was
+	 * decided.
+	 */
+	protected TestResult getShardTestResult(TestResult tr, List<String> output, boolean stopped) {
+		String testClass = null;
+		String testName = null;
+		boolean finished = false;
+
+		for(String line : output) {
+			line = line.trim();
+
+			if(line.startsWith("INSTRUMENTATION_STATUS: class="))
+				testClass = line.substring("INSTRUMENTATION_STATUS: class=".length());
+
+			else if(line.startsWith("INSTRUMENTATION_STATUS: test="))
+				testName = line.substring("INSTRUMENTATION_STATUS: test=".length());
+
+			else if(line.startsWith("INSTRUMENTATION_STATUS_CODE:")) {
+				int code = Integer.parseInt(line.substring("INSTRUMENTATION_STATUS_CODE:".length()).trim());
+				String test = testClass + "#" + testName;
+
+				if(code == 0) {
+					tr.casesExecuted++;
+					tr.successTest.add(test);
+				}
+				else if(code == -1 || code == -2) {
+					tr.casesExecuted++;
+					tr.failures++;
+					tr.failTest.add(test);
+				}
+			}
+
+			else if(line.startsWith("INSTRUMENTATION_CODE:"))
+				finished = true;
+		}
+
+		if(finished || stopped)
+			return tr;
+
+		logger.info("The Process that runs instrumentation test cases had problems reading the validation process\n output: \n" + String.join("\n", output));
+		return null;
+	}
+
 	/**
 	 * This method analyze the output of the junit executor and return an entity called TestResult with
 	 * the result of the test execution
@@ -80,11 +152,10 @@ public class  InstrumentationTestExecutorProcess {
 	protected TestResult getTestResult(TestResult tr, List<String> output) {
 		boolean success = false;
 		String out = "";
-		Pattern testPattern = Pattern.compile("([a-zA-Z0-9._])+(\\s>\\s)([a-zA-Z0-9._])+(\\[.*?\\]\\s*)(\\e\\[31m|\\e\\[32m)(FAILED|SUCCESS)(\\s\\e\\[0m)\\s*");
 		try {
 			for(String line : output) {
 				out += line + "\n";
-				Matcher m = testPattern.matcher(line);
+				Matcher m = TEST_LINE.matcher(line);
 
 				if (m.matches()) {
 					tr.casesExecuted++;
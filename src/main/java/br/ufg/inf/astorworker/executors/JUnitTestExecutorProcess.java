@@ -18,6 +18,9 @@ import org.apache.log4j.Logger;
 
 import fr.inria.astor.core.validation.entity.TestResult;
 import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.validators.TestPrioritizer;
 
 /**
  * Process-based program variant validation
@@ -26,11 +29,21 @@ import br.ufg.inf.astorworker.entities.AndroidProject;
  * 
  */
 public class  JUnitTestExecutorProcess {
+	/* "Class > method PASSED|FAILED", as logged by Gradle */
+	public static final Pattern TEST_LINE = Pattern.compile("([a-zA-Z0-9._])+(\\s>\\s)([a-zA-Z0-9._])+(\\s)(FAILED|PASSED)\\s*");
 	private Logger logger = Logger.getLogger(JUnitTestExecutorProcess.class);
 	
-	public TestResult executeFailingTests() throws Exception {
+	public TestResult executeFailingTests(Variant variant, TestOutputMonitor monitor) throws Exception {
+		return executeTests(variant, AndroidProject.getInstance().getFailingUnitTestCases(), monitor);
+	}
+
+	public TestResult executeTests(Variant variant, List<String> tests, TestOutputMonitor monitor) throws Exception {
 		try {
-			List<String> output = AndroidProject.getInstance().runFailingUnitTests();
+			// Gradle runs the tests in its own order whatever the order of the filters
+			if(runsOnCompiledClasses(variant))
+				return UnitTestRunnerPool.getInstance().run(variant.getClassesDirectory(), TestPrioritizer.getInstance().order(TestType.UNIT, tests), monitor);
+
+			List<String> output = AndroidProject.getInstance().runUnitTests(tests, monitor);
 		
 			TestResult tr = getTestResult(output);
 			
@@ -41,9 +54,12 @@ public class  JUnitTestExecutorProcess {
 		return null;
 	}
 
-	public TestResult executeRegression() throws Exception {
+	public TestResult executeRegression(Variant variant, TestOutputMonitor monitor) throws Exception {
 		try {
-			List<String> output = AndroidProject.getInstance().runAllUnitTests();
+			if(runsOnCompiledClasses(variant))
+				return UnitTestRunnerPool.getInstance().run(variant.getClassesDirectory(), null, monitor);
+
+			List<String> output = AndroidProject.getInstance().runAllUnitTests(monitor);
 		
 			TestResult tr = getTestResult(output);
 			
@@ -54,15 +70,47 @@ public class  JUnitTestExecutorProcess {
 		return null;
 	}
 
+	/**
+	 * Runs the failing tests and the rest of the regression, or the given
+	 * tests if any, in a single request to a test JVM, which runs the
+	 * failing tests first and the rest only if they all pass. Gradle cannot
+	 * be told to run some tests before the others, so single-pass
+	 * validation only applies to variants that run on the test JVMs.
+	 */
+	public TestResult executeSinglePass(Variant variant, List<String> failing, List<String> rest, TestOutputMonitor monitor) throws Exception {
+		TestPrioritizer prioritizer = TestPrioritizer.getInstance();
+		List<String> first = failing == null ? new ArrayList<String>() : prioritizer.order(TestType.UNIT, failing);
+		List<String> then = rest == null ? null : prioritizer.order(TestType.UNIT, rest);
+
+		try {
+			return UnitTestRunnerPool.getInstance().runSinglePass(variant.getClassesDirectory(), first, then, monitor);
+		} catch ( IOException |InterruptedException |IllegalThreadStateException  ex) {
+			logger.error("The Process that runs JUnit test cases had problems: " + ex.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * True if the unit tests of the variant run on the test JVMs, the only
+	 * runner that can validate it in a single pass.
+	 */
+	public static boolean runsOnCompiledClasses(Variant variant) {
+		return UnitTestRunnerPool.isEnabled() && variant.getClassesDirectory() != null;
+	}
+
 	private TestResult getTestResult(List<String> output) {
+		for(String line : output) {
+			if(line.startsWith(BuildSession.TEST_EVENT))
+				return getTestResultFromEvents(output);
+		}
+
 		TestResult tr = new TestResult();
 		boolean success = false;
 		String out = "";
-		Pattern testPattern = Pattern.compile("([a-zA-Z0-9._])+(\\s>\\s)([a-zA-Z0-9._])+(\\s)(FAILED|PASSED)\\s*");
 		try {
 			for(String line : output) {
 				out += line + "\n";
-				Matcher m = testPattern.matcher(line);
+				Matcher m = TEST_LINE.matcher(line);
 
 				if (m.matches()) {
 					tr.casesExecuted++;
@@ -86,4 +134,25 @@ public class  JUnitTestExecutorProcess {
 		}
 	}
 
+	/* Test events of a build session are exact, so the logged lines are ignored */
+	private TestResult getTestResultFromEvents(List<String> output) {
+		TestResult tr = new TestResult();
+
+		for(String line : output) {
+			if(!line.startsWith(BuildSession.TEST_EVENT))
+				continue;
+
+			String[] tokens = line.split("\t");
+			tr.casesExecuted++;
+
+			if(tokens[2].equals("FAILED")) {
+				tr.failures++;
+				tr.failTest.add(tokens[1]);
+			}
+			else tr.successTest.add(tokens[1]);
+		}
+
+		return tr;
+	}
+
 }
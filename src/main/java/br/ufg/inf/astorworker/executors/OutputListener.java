@@ -0,0 +1,8 @@
+package br.ufg.inf.astorworker.executors;
+
+/**
+ * Receives the output of a process line by line while it runs.
+ */
+public interface OutputListener {
+	void onLine(String line) throws Exception;
+}
@@ -0,0 +1,15 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a command is killed by the watchdog. It is an IOException,
+ * so the test executors report it as an execution error.
+ */
+public class ProcessTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ProcessTimeoutException(String message) {
+		super(message);
+	}
+}
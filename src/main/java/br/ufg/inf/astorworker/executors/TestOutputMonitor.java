@@ -0,0 +1,136 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import br.ufg.inf.astorworker.runner.UnitTestServer;
+
+/**
+ * Watches the output of a test run while it is printed. Every failed test
+ * is handed to the failure listener as soon as its line shows up and, in
+ * fail-fast mode, the first one decides the outcome of the run, so the
+ * executor can stop it. The lines understood are the ones the executors
+ * parse afterwards: Gradle's unit and instrumentation test lines, test
+ * events of build sessions, results of the unit test JVMs and the status
+ * codes of "am instrument -r". A run may also be decided by the failure
+ * of one of its decisive tests, such as the failing tests of a single-pass
+ * validation, whether or not it is in fail-fast mode.
+ */
+public class TestOutputMonitor implements OutputListener {
+	private static final String STATUS_CLASS = "INSTRUMENTATION_STATUS: class=";
+	private static final String STATUS_TEST = "INSTRUMENTATION_STATUS: test=";
+	private static final String STATUS_CODE = "INSTRUMENTATION_STATUS_CODE:";
+	private boolean failFast;
+	private Collection<String> decisive;
+	private FailureListener listener;
+	private List<String> failures = new ArrayList<String>();
+	private volatile boolean decided;
+	private volatile boolean decisiveFailure;
+	private String statusClass;
+	private String statusTest;
+
+	public TestOutputMonitor(boolean failFast, FailureListener listener) {
+		this(failFast, Collections.<String>emptyList(), listener);
+	}
+
+	/**
+	 * A decisive test is "Class#method" or a class name, for every test of
+	 * the class.
+	 */
+	public TestOutputMonitor(boolean failFast, Collection<String> decisive, FailureListener listener) {
+		this.failFast = failFast;
+		this.decisive = decisive;
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void onLine(String line) throws Exception {
+		String test = getFailedTest(line);
+		if(test == null)
+			return;
+
+		failures.add(test);
+		if(isDecisive(test))
+			decisiveFailure = true;
+
+		if(failFast || decisiveFailure)
+			decided = true;
+
+		if(listener != null)
+			listener.onFailure(test);
+	}
+
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	/**
+	 * True once the rest of the run cannot change its outcome.
+	 */
+	public boolean isDecided() {
+		return decided;
+	}
+
+	/**
+	 * True if a decisive test failed.
+	 */
+	public boolean hasDecisiveFailure() {
+		return decisiveFailure;
+	}
+
+	private boolean isDecisive(String test) {
+		for(String name : decisive) {
+			if(test.equals(name) || test.startsWith(name + "#"))
+				return true;
+		}
+
+		return false;
+	}
+
+	public synchronized List<String> getFailures() {
+		return new ArrayList<String>(failures);
+	}
+
+	private String getFailedTest(String line) {
+		if(line.startsWith(BuildSession.TEST_EVENT) || line.startsWith(UnitTestServer.RESULT)) {
+			String[] fields = line.split("\t");
+			return fields.length > 2 && fields[2].equals("FAILED") ? fields[1] : null;
+		}
+
+		String trimmed = line.trim();
+
+		if(trimmed.startsWith(STATUS_CLASS))
+			statusClass = trimmed.substring(STATUS_CLASS.length());
+
+		else if(trimmed.startsWith(STATUS_TEST))
+			statusTest = trimmed.substring(STATUS_TEST.length());
+
+		else if(trimmed.startsWith(STATUS_CODE)) {
+			String code = trimmed.substring(STATUS_CODE.length()).trim();
+			return code.equals("-1") || code.equals("-2") ? statusClass + "#" + statusTest : null;
+		}
+
+		Matcher unit = JUnitTestExecutorProcess.TEST_LINE.matcher(line);
+		if(unit.matches())
+			return unit.group(5).equals("FAILED") ? getGradleTest(line) : null;
+
+		Matcher instrumentation = InstrumentationTestExecutorProcess.TEST_LINE.matcher(line);
+		if(instrumentation.matches())
+			return instrumentation.group(6).equals("FAILED") ? getGradleTest(line) : null;
+
+		return null;
+	}
+
+	/* "Class > method ..." */
+	private static String getGradleTest(String line) {
+		String[] tokens = line.trim().split("\\s+>\\s+|\\s+|\\[");
+		return tokens[0] + "#" + tokens[1];
+	}
+
+	public interface FailureListener {
+		void onFailure(String test) throws Exception;
+	}
+}
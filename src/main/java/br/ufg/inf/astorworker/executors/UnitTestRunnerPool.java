@@ -0,0 +1,228 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import fr.inria.astor.core.validation.entity.TestResult;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.runner.UnitTestServer;
+import br.ufg.inf.astorworker.utils.ProcessUtils;
+import br.ufg.inf.astorworker.validators.TestPrioritizer;
+
+/**
+ * JVMs started ahead of time, one per slot, that run unit tests straight
+ * on the compiled classes of a variant instead of through Gradle. The
+ * libraries of the project are on the classpath of every JVM, while the
+ * classes of the project are loaded again for every variant. A JVM that
+ * dies is started again on its next use.
+ */
+public class UnitTestRunnerPool {
+	private static UnitTestRunnerPool instance = null;
+	private BlockingQueue<RunnerJvm> idleRunners;
+	private String runnerClasspath;
+	private File logDirectory;
+	private Logger logger = Logger.getLogger(UnitTestRunnerPool.class);
+
+	private UnitTestRunnerPool() {}
+
+	public static UnitTestRunnerPool getInstance() {
+		if(instance == null)
+			instance = new UnitTestRunnerPool();
+
+		return instance;
+	}
+
+	public static boolean isEnabled() {
+		return ConfigurationProperties.getProperty("unitrunner").equals("jvm");
+	}
+
+	/**
+	 * Compiles the unit tests of the project and starts the JVMs.
+	 */
+	public void setup() throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+
+		logger.info("Compiling unit tests");
+		project.compileUnitTests();
+
+		// Directories hold classes of the project, which are loaded per variant
+		List<String> libraries = new ArrayList<String>();
+		libraries.add(new File(UnitTestServer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath());
+		for(String entry : project.getDependencies().split(File.pathSeparator)) {
+			if(entry.endsWith(".jar"))
+				libraries.add(entry);
+		}
+
+		runnerClasspath = String.join(File.pathSeparator, libraries);
+		logDirectory = new File("workDir/AstorWorker-" + project.getProjectName() + "/runners");
+		logDirectory.mkdirs();
+
+		shutdown();
+		int count = project.getSlotCount();
+		idleRunners = new LinkedBlockingQueue<RunnerJvm>();
+
+		for(int i = 0; i < count; i++)
+			idleRunners.add(new RunnerJvm(i));
+
+		logger.info(count + " unit test JVMs started");
+	}
+
+	/**
+	 * Runs the tests, or every unit test if the list is null, against the
+	 * classes of the variant. Returns null if the tests could not run. The
+	 * results go to the monitor as they come and, in fail-fast mode, the
+	 * JVM stops at the first failing test. Every unit test runs after the
+	 * ones the prioritizer puts first.
+	 */
+	public TestResult run(File variantClasses, List<String> tests, TestOutputMonitor monitor) throws Exception {
+		return run(variantClasses, tests == null ? getAllTests() : String.join("\t", tests), monitor);
+	}
+
+	/**
+	 * Runs the failing tests and, if they all pass, the rest of the tests,
+	 * or every other unit test if the list is null, in a single request.
+	 * Tests already run are not run again.
+	 */
+	public TestResult runSinglePass(File variantClasses, List<String> failing, List<String> rest, TestOutputMonitor monitor) throws Exception {
+		List<String> tests = new ArrayList<String>(failing);
+		tests.add(UnitTestServer.GATE);
+
+		return run(variantClasses, String.join("\t", tests) + "\t" + (rest == null ? getAllTests() : String.join("\t", rest)), monitor);
+	}
+
+	private TestResult run(File variantClasses, String tests, TestOutputMonitor monitor) throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+		String classpath = variantClasses.getAbsolutePath() + File.pathSeparator 
+				+ project.getUnitTestClassesDirectory().getAbsolutePath() + File.pathSeparator 
+				+ project.getDebugClassesDirectory().getAbsolutePath();
+
+		String mode = monitor != null && monitor.isFailFast() ? UnitTestServer.FAIL_FAST : UnitTestServer.ALL;
+		String request = mode + "\t" + classpath + "\t" + project.getUnitTestClassesDirectory().getAbsolutePath() 
+				+ "\t" + tests;
+
+		RunnerJvm runner = idleRunners.take();
+		Watchdog.Watch watch = Watchdog.watch(runner::destroy, "unit tests in JVM " + runner.index);
+		TestResult tr;
+
+		try {
+			tr = runner.run(request, monitor);
+		} catch(IOException e) {
+			if(!watch.hasExpired())
+				logger.error("Unit test JVM " + runner.index + " died: " + e.getMessage());
+
+			runner.destroy();
+			tr = null;
+		} finally {
+			// The watchdog must be done with the JVM before another slot can take it
+			watch.cancel();
+			idleRunners.put(runner);
+		}
+
+		// A JVM stopped by the watchdog is started again on its next use
+		watch.close();
+		return tr;
+	}
+
+	/* Parameterized tests, "method[0]", cannot be requested by name and are left to "*" */
+	private static String getAllTests() {
+		List<String> tests = new ArrayList<String>();
+
+		for(String test : TestPrioritizer.getInstance().getKnownTests(TestType.UNIT)) {
+			if(!test.contains("["))
+				tests.add(test);
+		}
+
+		tests.add("*");
+		return String.join("\t", tests);
+	}
+
+	public void shutdown() {
+		if(idleRunners == null)
+			return;
+
+		for(RunnerJvm runner : idleRunners)
+			runner.destroy();
+	}
+
+	private class RunnerJvm {
+		private int index;
+		private Process process;
+		private BufferedWriter requests;
+		private BufferedReader responses;
+
+		private RunnerJvm(int index) throws IOException {
+			this.index = index;
+			start();
+		}
+
+		private void start() throws IOException {
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + "/bin/java");
+			command.add("-cp");
+			command.add(runnerClasspath);
+			command.add(UnitTestServer.class.getName());
+
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.directory(new File(AndroidProject.getInstance().getModuleLocation()));
+			pb.redirectError(new File(logDirectory, "runner-" + index + ".log"));
+			process = pb.start();
+
+			requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+			responses = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+		private TestResult run(String request, TestOutputMonitor monitor) throws Exception {
+			if(process == null || !process.isAlive())
+				start();
+
+			requests.write(request);
+			requests.newLine();
+			requests.flush();
+
+			TestResult tr = new TestResult();
+			String line;
+
+			while((line = responses.readLine()) != null) {
+				if(line.equals(UnitTestServer.DONE))
+					return tr;
+
+				if(!line.startsWith(UnitTestServer.RESULT))
+					continue;
+
+				if(monitor != null)
+					monitor.onLine(line);
+
+				String[] fields = line.split("\t");
+				tr.casesExecuted++;
+
+				if(fields[2].equals("FAILED")) {
+					tr.failures++;
+					tr.failTest.add(fields[1]);
+				}
+				else tr.successTest.add(fields[1]);
+			}
+
+			throw new IOException("the JVM exited before finishing the tests");
+		}
+
+		private synchronized void destroy() {
+			if(process != null)
+				ProcessUtils.killTree(process);
+
+			process = null;
+		}
+	}
+}
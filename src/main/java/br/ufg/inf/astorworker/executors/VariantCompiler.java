@@ -0,0 +1,604 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Trees;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.utils.BytecodeUtils;
+import br.ufg.inf.astorworker.utils.HashUtils;
+import fr.inria.astor.core.setup.ConfigurationProperties;
+
+/**
+ * Compiles variants in memory with a compiler kept warm between calls.
+ * Only the files of a variant that differ from the pristine sources are
+ * compiled, against the pristine classes in "defaultbin". If a changed
+ * file alters the signature of its classes, the pristine files that
+ * mention them, or any of their subclasses, are compiled along with it. A
+ * variant that deletes files is compiled whole, with the classes of the
+ * deleted files hidden from "defaultbin". Every thread keeps its own file
+ * manager, with the classpath already indexed, so variants can be compiled
+ * from several threads at once. The classes of every variant are hashed
+ * without their debug attributes, and the variant is flagged if they are
+ * the classes of the pristine sources.
+ */
+public class VariantCompiler {
+    private static VariantCompiler instance = null;
+    private JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private ThreadLocal<WarmFileManager> fileManagers = new ThreadLocal<WarmFileManager>();
+    private volatile int generation;
+    private Map<String, String> pristineSignatures = new ConcurrentHashMap<String, String>();
+    private Map<String, String> pristineBytecode = new ConcurrentHashMap<String, String>();
+    private Map<String, Set<String>> pristineClassNames = new ConcurrentHashMap<String, Set<String>>();
+    private Logger logger = Logger.getLogger(VariantCompiler.class);
+
+    private VariantCompiler() {}
+
+    public static synchronized VariantCompiler getInstance() {
+        if (instance == null)
+            instance = new VariantCompiler();
+
+        return instance;
+    }
+
+    /**
+     * Forgets the sources and classpath of the previous project.
+     */
+    public synchronized void reset() {
+        generation++;
+        pristineSignatures.clear();
+        pristineBytecode.clear();
+        pristineClassNames.clear();
+    }
+
+    /**
+     * Compiles the variant and returns true if it compiles. The classes are
+     * only written to the directory, and remembered by the variant, when
+     * the unit test JVMs need them; otherwise nothing touches the disk. The
+     * hash of the classes is always kept by the variant.
+     */
+    public boolean compile(Variant variant, File classesDirectory) throws IOException {
+        long t_start = System.currentTimeMillis();
+        Map<String, byte[]> changed = new HashMap<String, byte[]>();
+        Map<String, byte[]> resources = new HashMap<String, byte[]>();
+        Set<String> deleted = new HashSet<String>();
+        findChanges(variant, changed, resources, deleted);
+
+        Compilation compilation;
+
+        // Only compiling everything notices the users of a deleted class
+        if (deleted.stream().anyMatch(path -> path.endsWith(".java")))
+            compilation = compileAll(changed, deleted);
+        else
+            compilation = compileChanged(changed);
+
+        long t_end = System.currentTimeMillis();
+        logger.debug(variant.getName() + ": " + changed.size() + " changed files compiled in " + (t_end - t_start) + " ms");
+
+        if (compilation == null)
+            return false;
+
+        hashClasses(variant, compilation, resources, deleted);
+
+        if (UnitTestRunnerPool.isEnabled()) {
+            writeClasses(compilation.classes, classesDirectory);
+            variant.setClassesDirectory(classesDirectory);
+        }
+
+        return true;
+    }
+
+    /* Sources go to changed, other files to resources; deleted holds both */
+    private void findChanges(Variant variant, Map<String, byte[]> changed, Map<String, byte[]> resources, Set<String> deleted) throws IOException {
+        Set<String> pristineFiles = AndroidProject.getInstance().getPristineSourceFiles();
+
+        for (String path : variant.getFiles().keySet()) {
+            byte[] contents = variant.getFiles().get(path);
+
+            if (pristineFiles.contains(path) && Arrays.equals(contents, getPristineSource(path)))
+                continue;
+
+            if (path.endsWith(".java"))
+                changed.put(path, contents);
+            else
+                resources.put(path, contents);
+        }
+
+        for (String path : pristineFiles) {
+            boolean removed = variant.isComplete() ? !variant.getFiles().containsKey(path) : variant.getDeletedFiles().contains(path);
+
+            if (removed)
+                deleted.add(path);
+        }
+    }
+
+    private Compilation compileChanged(Map<String, byte[]> changed) throws IOException {
+        Compilation compilation = new Compilation(changed);
+        if (changed.isEmpty())
+            return compilation;
+
+        if (!compilation.run(true))
+            return null;
+
+        Set<String> changedTypes = new HashSet<String>();
+        for (String path : changed.keySet()) {
+            // Nothing in the pristine sources can use a new file
+            if (!AndroidProject.getInstance().getPristineSourceFiles().contains(path))
+                continue;
+
+            if (!compilation.signatures.get(path).equals(getPristineSignature(path)))
+                changedTypes.addAll(compilation.typeNames.get(path));
+        }
+
+        if (changedTypes.isEmpty())
+            return compilation;
+
+        // Subclasses inherit the changed members, so their users can break too
+        changedTypes = addSubtypes(changedTypes);
+
+        Map<String, byte[]> sources = new HashMap<String, byte[]>(changed);
+        for (String path : findDependents(changedTypes, changed.keySet()))
+            sources.put(path, getPristineSource(path));
+
+        logger.debug("Signatures of " + changedTypes + " changed, compiling " + (sources.size() - changed.size()) + " dependent files");
+
+        Compilation withDependents = new Compilation(sources);
+        return withDependents.run(false) ? withDependents : null;
+    }
+
+    private Compilation compileAll(Map<String, byte[]> changed, Set<String> deleted) throws IOException {
+        Map<String, byte[]> sources = new HashMap<String, byte[]>();
+
+        for (String path : AndroidProject.getInstance().getPristineSourceFiles()) {
+            if (path.endsWith(".java") && !deleted.contains(path))
+                sources.put(path, getPristineSource(path));
+        }
+
+        sources.putAll(changed);
+
+        // The classes of the deleted files are still in defaultbin
+        Set<String> hidden = new HashSet<String>();
+        for (String path : deleted) {
+            if (path.endsWith(".java"))
+                hidden.addAll(getPristineClassNames(path));
+        }
+
+        Compilation compilation = new Compilation(sources, hidden);
+        return compilation.run(false) ? compilation : null;
+    }
+
+    /*
+     * Only the files whose classes differ from the ones of their pristine
+     * version are hashed, so a variant that compiles to the pristine classes
+     * gets the hash of an empty variant. Variants that delete sources are
+     * compiled whole and hashed whole. Changed and deleted files that are
+     * not sources are hashed as they are.
+     */
+    private void hashClasses(Variant variant, Compilation compilation, Map<String, byte[]> resources, Set<String> deleted) throws IOException {
+        MessageDigest digest = HashUtils.newSha256();
+        boolean pristine = resources.isEmpty() && deleted.isEmpty();
+
+        for (String path : new TreeSet<String>(resources.keySet()))
+            digest.update(("\0+" + path + "\0" + HashUtils.toHex(HashUtils.sha256(resources.get(path)))).getBytes(StandardCharsets.UTF_8));
+
+        for (String path : new TreeSet<String>(deleted))
+            digest.update(("\0-" + path).getBytes(StandardCharsets.UTF_8));
+
+        try {
+            if (deleted.stream().anyMatch(path -> path.endsWith(".java"))) {
+                digest.update(BytecodeUtils.sha256(compilation.classes).getBytes(StandardCharsets.UTF_8));
+            }
+            else {
+                for (String path : new TreeSet<String>(compilation.paths.values())) {
+                    String hash = BytecodeUtils.sha256(compilation.getClasses(path));
+                    if (hash.equals(getPristineBytecode(path)))
+                        continue;
+
+                    pristine = false;
+                    digest.update(("\0+" + path + "\0" + hash).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not hash the classes of " + variant.getName() + ": " + e);
+            variant.setBytecodeHash(null);
+            variant.setEquivalentToPristine(false);
+            return;
+        }
+
+        variant.setBytecodeHash(HashUtils.toHex(digest.digest()));
+        variant.setEquivalentToPristine(pristine);
+    }
+
+    /* A file can only use a class it names, so files not mentioning any of them are left out */
+    private Set<String> findDependents(Set<String> typeNames, Set<String> exclude) throws IOException {
+        Pattern mention = Pattern.compile("\\b(" + String.join("|", typeNames) + ")\\b");
+        Set<String> dependents = new HashSet<String>();
+
+        for (String path : AndroidProject.getInstance().getPristineSourceFiles()) {
+            if (!path.endsWith(".java") || exclude.contains(path))
+                continue;
+
+            if (mention.matcher(new String(getPristineSource(path), StandardCharsets.UTF_8)).find())
+                dependents.add(path);
+        }
+
+        return dependents;
+    }
+
+    /*
+     * Adds the simple names of the classes that extend or implement any of
+     * the types, directly or not, found the same way as the dependents.
+     * Generic bounds also match, which only compiles more files.
+     */
+    private Set<String> addSubtypes(Set<String> typeNames) throws IOException {
+        Set<String> types = new HashSet<String>(typeNames);
+        boolean grew = true;
+
+        while (grew) {
+            grew = false;
+            Pattern subtype = Pattern.compile("\\b(?:class|interface|enum)\\s+(\\w+)[^{;]*?\\b(?:extends|implements)\\b[^{;]*?\\b(?:"
+                    + String.join("|", types) + ")\\b");
+
+            for (String path : AndroidProject.getInstance().getPristineSourceFiles()) {
+                if (!path.endsWith(".java"))
+                    continue;
+
+                Matcher matcher = subtype.matcher(new String(getPristineSource(path), StandardCharsets.UTF_8));
+                while (matcher.find())
+                    grew |= types.add(matcher.group(1));
+            }
+        }
+
+        return types;
+    }
+
+    private byte[] getPristineSource(String path) throws IOException {
+        return AndroidProject.getInstance().getPristineSource(path);
+    }
+
+    /* Found by analyzing the pristine file once, the first time a variant changes it */
+    private String getPristineSignature(String path) throws IOException {
+        String signature = pristineSignatures.get(path);
+
+        if (signature == null) {
+            Compilation compilation = new Compilation(Collections.singletonMap(path, getPristineSource(path)));
+            signature = compilation.analyze() ? compilation.signatures.get(path) : "";
+            pristineSignatures.put(path, signature);
+        }
+
+        return signature;
+    }
+
+    /* Compiled the same way as the variants, the first time a variant changes the file */
+    private String getPristineBytecode(String path) throws IOException {
+        if (!AndroidProject.getInstance().getPristineSourceFiles().contains(path))
+            return null;
+
+        String hash = pristineBytecode.get(path);
+
+        if (hash == null) {
+            Compilation compilation = new Compilation(Collections.singletonMap(path, getPristineSource(path)));
+            hash = compilation.run(false) ? BytecodeUtils.sha256(compilation.classes) : "";
+            pristineBytecode.put(path, hash);
+        }
+
+        return hash;
+    }
+
+    /*
+     * Binary names of the top-level classes of a pristine file. Found by
+     * compiling it once; if it does not compile alone, the class named
+     * after the file is assumed.
+     */
+    private Set<String> getPristineClassNames(String path) throws IOException {
+        Set<String> classNames = pristineClassNames.get(path);
+
+        if (classNames == null) {
+            classNames = new HashSet<String>();
+            Compilation compilation = new Compilation(Collections.singletonMap(path, getPristineSource(path)));
+
+            if (compilation.run(false)) {
+                for (String className : compilation.classes.keySet()) {
+                    if (className.indexOf('$') < 0)
+                        classNames.add(className);
+                }
+            }
+            else
+                classNames.add(path.substring(0, path.length() - ".java".length()).replace('/', '.'));
+
+            pristineClassNames.put(path, classNames);
+        }
+
+        return classNames;
+    }
+
+    private StandardJavaFileManager getFileManager() throws IOException {
+        WarmFileManager warm = fileManagers.get();
+
+        if (warm == null || warm.generation != generation) {
+            if (warm != null)
+                warm.fileManager.close();
+
+            warm = new WarmFileManager(generation, compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8));
+            warm.fileManager.setLocation(StandardLocation.CLASS_PATH, getClasspath());
+            fileManagers.set(warm);
+        }
+
+        return warm.fileManager;
+    }
+
+    private static List<File> getClasspath() {
+        List<File> classpath = new ArrayList<File>();
+        classpath.add(new File(ConfigurationProperties.getProperty("defaultbin")));
+
+        for (String entry : AndroidProject.getInstance().getDependencies().split(File.pathSeparator)) {
+            if (!entry.isEmpty())
+                classpath.add(new File(entry));
+        }
+
+        return classpath;
+    }
+
+    private static void writeClasses(Map<String, byte[]> classes, File directory) throws IOException {
+        FileUtils.deleteQuietly(directory);
+
+        for (String className : classes.keySet())
+            FileUtils.writeByteArrayToFile(new File(directory, className.replace('.', '/') + ".class"), classes.get(className));
+    }
+
+    /**
+     * One run of the compiler over some sources, all of them in memory.
+     * Keeps the classes it generates, the file each one comes from and,
+     * per file, the signature and the simple names of its top-level classes.
+     */
+    private class Compilation {
+        private Map<URI, String> paths = new HashMap<URI, String>();
+        private List<JavaFileObject> units = new ArrayList<JavaFileObject>();
+        private Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        private Map<String, String> origins = new HashMap<String, String>();
+        private Map<String, String> signatures = new HashMap<String, String>();
+        private Map<String, Set<String>> typeNames = new HashMap<String, Set<String>>();
+        private Set<String> hidden;
+
+        private Compilation(Map<String, byte[]> sources) {
+            this(sources, Collections.<String>emptySet());
+        }
+
+        private Compilation(Map<String, byte[]> sources, Set<String> hidden) {
+            this.hidden = hidden;
+
+            for (String path : sources.keySet()) {
+                MemorySource source = new MemorySource(path, sources.get(path));
+                paths.put(source.toUri(), path);
+                units.add(source);
+            }
+        }
+
+        private Map<String, byte[]> getClasses(String path) {
+            Map<String, byte[]> fileClasses = new HashMap<String, byte[]>();
+
+            for (String className : classes.keySet()) {
+                if (path.equals(origins.get(className)))
+                    fileClasses.put(className, classes.get(className));
+            }
+
+            return fileClasses;
+        }
+
+        private boolean analyze() throws IOException {
+            return run(true, false);
+        }
+
+        private boolean run(boolean withSignatures) throws IOException {
+            return run(withSignatures, true);
+        }
+
+        private boolean run(boolean withSignatures, boolean generate) throws IOException {
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+            JavaFileManager fileManager = new MemoryFileManager(getFileManager(), classes, origins, paths, hidden);
+
+            // The generated sources of annotation processors are already compiled in the classpath
+            JavacTask task = (JavacTask) compiler.getTask(null, fileManager, diagnostics, Arrays.asList("-proc:none"), null, units);
+            Iterable<? extends Element> types = task.analyze();
+
+            if (!hasErrors(diagnostics) && withSignatures)
+                computeSignatures(Trees.instance(task), types);
+
+            if (!hasErrors(diagnostics) && generate)
+                task.generate();
+
+            if (hasErrors(diagnostics)) {
+                logger.debug("The Process that compiles java had problems, output:");
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+                    logger.debug("\t[" + diagnostic.getKind().toString() + "]: " + diagnostic.getMessage(null));
+
+                return false;
+            }
+
+            return true;
+        }
+
+        private void computeSignatures(Trees trees, Iterable<? extends Element> types) {
+            Map<String, List<String>> members = new HashMap<String, List<String>>();
+
+            for (String path : paths.values()) {
+                members.put(path, new ArrayList<String>());
+                typeNames.put(path, new HashSet<String>());
+            }
+
+            for (Element element : types) {
+                if (!(element instanceof TypeElement))
+                    continue;
+
+                String path = paths.get(trees.getPath(element).getCompilationUnit().getSourceFile().toUri());
+                typeNames.get(path).add(element.getSimpleName().toString());
+                addSignature((TypeElement) element, members.get(path));
+            }
+
+            for (String path : members.keySet()) {
+                Collections.sort(members.get(path));
+                signatures.put(path, String.join("\n", members.get(path)));
+            }
+        }
+    }
+
+    /* What other files can see of a class: every non-private declaration, and constants since they are inlined */
+    private static void addSignature(TypeElement type, List<String> members) {
+        members.add(type.getKind() + " " + type.getModifiers() + " " + type.getQualifiedName() + type.getTypeParameters() 
+                + " extends " + type.getSuperclass() + " implements " + type.getInterfaces());
+
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getModifiers().contains(Modifier.PRIVATE))
+                continue;
+
+            if (member instanceof TypeElement) {
+                addSignature((TypeElement) member, members);
+                continue;
+            }
+
+            String signature = type.getQualifiedName() + " " + member.getKind() + " " + member.getModifiers() + " " + member.getSimpleName() + " " + member.asType();
+            if (member instanceof VariableElement && ((VariableElement) member).getConstantValue() != null)
+                signature += " = " + ((VariableElement) member).getConstantValue();
+
+            members.add(signature);
+        }
+    }
+
+    private static boolean hasErrors(DiagnosticCollector<JavaFileObject> diagnostics) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static class WarmFileManager {
+        private int generation;
+        private StandardJavaFileManager fileManager;
+
+        private WarmFileManager(int generation, StandardJavaFileManager fileManager) {
+            this.generation = generation;
+            this.fileManager = fileManager;
+        }
+    }
+
+    /* A source file kept in memory */
+    private static class MemorySource extends SimpleJavaFileObject {
+        private String code;
+
+        private MemorySource(String path, byte[] contents) {
+            super(URI.create("string:///" + path), JavaFileObject.Kind.SOURCE);
+            this.code = new String(contents, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    /*
+     * Keeps the generated classes in a map instead of writing them out, along
+     * with the file each one comes from. Hidden classes, and their nested
+     * classes, are left out of the classpath.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private Map<String, byte[]> classes;
+        private Map<String, String> origins;
+        private Map<URI, String> paths;
+        private Set<String> hidden;
+
+        private MemoryFileManager(StandardJavaFileManager fileManager, Map<String, byte[]> classes, Map<String, String> origins, Map<URI, String> paths, Set<String> hidden) {
+            super(fileManager);
+            this.classes = classes;
+            this.origins = origins;
+            this.paths = paths;
+            this.hidden = hidden;
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+
+            if (hidden.isEmpty() || location != StandardLocation.CLASS_PATH)
+                return files;
+
+            List<JavaFileObject> visible = new ArrayList<JavaFileObject>();
+            for (JavaFileObject file : files) {
+                if (!isHidden(inferBinaryName(location, file)))
+                    visible.add(file);
+            }
+
+            return visible;
+        }
+
+        private boolean isHidden(String className) {
+            if (className == null)
+                return false;
+
+            int nested = className.indexOf('$');
+            return hidden.contains(nested < 0 ? className : className.substring(0, nested));
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            if (sibling != null)
+                origins.put(className, paths.get(sibling.toUri()));
+
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+
+        // The shared file manager is closed by its thread, not by each compilation
+        @Override
+        public void close() {}
+    }
+}
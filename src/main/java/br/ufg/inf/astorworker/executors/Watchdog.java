@@ -0,0 +1,156 @@
+package br.ufg.inf.astorworker.executors;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.cache.BaselineProfile;
+import br.ufg.inf.astorworker.enums.Phase;
+import br.ufg.inf.astorworker.utils.ProcessUtils;
+
+/**
+ * Time limits of the commands run by the worker. Every phase, such as the
+ * failing tests of a variant, has a deadline for the thread that runs it,
+ * and every command gets the rest of the time of its phase, or at most
+ * "commandtimeout" seconds. A command still running at its deadline is
+ * killed with every process it started, and its executor throws a
+ * ProcessTimeoutException. A limit of 0 means no limit. The tests of a
+ * variant get a tighter limit when the baseline profile knows how long
+ * they take on the original program.
+ */
+public class Watchdog {
+	private static final long NO_LIMIT = Long.MAX_VALUE;
+	private static ThreadLocal<Long> deadline = ThreadLocal.withInitial(() -> NO_LIMIT);
+	private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static Logger logger = Logger.getLogger(Watchdog.class);
+
+	/**
+	 * Runs the work of a phase. A phase inside another one ends no later
+	 * than the outer one.
+	 */
+	public static <T> T run(Phase phase, Work<T> work) throws Exception {
+		long timeout = getSeconds(phase.getProperty()) * 1000L;
+		long adaptive = BaselineProfile.getInstance().getTimeout(phase);
+
+		if(adaptive > 0 && (timeout <= 0 || adaptive < timeout))
+			timeout = adaptive;
+
+		long phaseDeadline = timeout > 0 ? System.currentTimeMillis() + timeout : NO_LIMIT;
+		return runUntil(Math.min(phaseDeadline, getDeadline()), work);
+	}
+
+	/**
+	 * Runs the work with the deadline of another thread, e.g. the one that
+	 * handed it the work.
+	 */
+	public static <T> T runUntil(long until, Work<T> work) throws Exception {
+		long previous = deadline.get();
+		deadline.set(until);
+
+		try {
+			return work.run();
+		} finally {
+			deadline.set(previous);
+		}
+	}
+
+	/**
+	 * The deadline of the phase the current thread is in, in milliseconds.
+	 */
+	public static long getDeadline() {
+		return deadline.get();
+	}
+
+	/**
+	 * Kills the process and everything it started if it is still running at
+	 * the deadline of the command.
+	 */
+	public static Watch watch(Process process, String command) {
+		return watch(() -> ProcessUtils.killTree(process), command);
+	}
+
+	/**
+	 * Runs the action, which must stop the command, if the command is still
+	 * running at its deadline.
+	 */
+	public static Watch watch(Runnable stop, String command) {
+		Watch watch = new Watch(command);
+		long until = getDeadline();
+		long commandTimeout = getSeconds("commandtimeout") * 1000L;
+
+		if(commandTimeout > 0)
+			until = Math.min(until, System.currentTimeMillis() + commandTimeout);
+
+		if(until == NO_LIMIT)
+			return watch;
+
+		watch.future = timer.schedule(() -> {
+			synchronized(watch) {
+				if(watch.cancelled)
+					return;
+
+				logger.warn("\"" + command + "\" timed out, stopping it");
+				watch.expired = true;
+				stop.run();
+			}
+		}, Math.max(until - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+
+		return watch;
+	}
+
+	private static int getSeconds(String property) {
+		return ConfigurationProperties.hasProperty(property) ? ConfigurationProperties.getPropertyInt(property) : 0;
+	}
+
+	/**
+	 * The watch over one command, to be closed when the command ends.
+	 */
+	public static class Watch {
+		private String command;
+		private ScheduledFuture<?> future;
+		private volatile boolean expired;
+		private boolean cancelled;
+
+		private Watch(String command) {
+			this.command = command;
+		}
+
+		public boolean hasExpired() {
+			return expired;
+		}
+
+		/**
+		 * Stops watching the command. Once it returns, the stop action is not
+		 * running and never will, so whatever it stops can be handed over.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+
+			if(future != null)
+				future.cancel(false);
+		}
+
+		/**
+		 * Stops watching the command and throws if it was stopped for running
+		 * out of time.
+		 */
+		public void close() throws ProcessTimeoutException {
+			cancel();
+
+			if(expired)
+				throw new ProcessTimeoutException("\"" + command + "\" timed out");
+		}
+	}
+
+	public interface Work<T> {
+		T run() throws Exception;
+	}
+}
@@ -6,36 +6,48 @@ import java.io.FileReader;
 import java.io.BufferedWriter;
 import java.io.BufferedReader;
 import java.io.File;
+import java.net.URISyntaxException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Node;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.commons.collections4.map.HashedMap;
 import org.apache.commons.collections4.map.AbstractHashedMap;
 import org.apache.commons.collections4.MapIterator;
 import org.apache.log4j.Logger;
 import org.apache.commons.io.FileUtils;
+import org.jacoco.agent.AgentJar;
 
+import br.ufg.inf.astorworker.cache.CoverageCache;
 import br.ufg.inf.astorworker.entities.AndroidProject;
 import br.ufg.inf.astorworker.executors.AndroidToolsExecutorProcess;
+import br.ufg.inf.astorworker.executors.CommandExecutorProcess;
+import br.ufg.inf.astorworker.runner.CoverageTestRunner;
 import br.inf.ufg.astorworker.utils.FileSystemUtils;
+import br.ufg.inf.astorworker.utils.HashUtils;
 import br.ufg.inf.astorworker.faultlocalization.entities.Line;
 import br.ufg.inf.astorworker.enums.TestType;
-import br.inf.ufg.astorworker.utils.FileSystemUtils;
+import br.ufg.inf.astorworker.enums.SuspiciousnessFormula;
+import fr.inria.astor.core.setup.ConfigurationProperties;
 
 public class AndroidFaultLocalization {
 	private static String projectName;
 	private static String unitTestTask;
 	private static String instrumentationTestTask;
 	private static AbstractHashedMap<String, Line> faulty = new HashedMap();
+	private static SpectrumMatrix spectrum = new SpectrumMatrix();
+	private static File agentJar;
+	private static CoverageCache coverageCache;
+	private static ExecutorService parsingExecutor;
+	private static List<Future<?>> pendingParses = new ArrayList<Future<?>>();
 	private static Logger logger = Logger.getRootLogger();
 
 	public static void setProjectName(String name){
@@ -43,49 +55,336 @@ public class AndroidFaultLocalization {
 	}
 
 	public static void setupFaultLocalization() 
-			throws IOException, InterruptedException {
+			throws Exception {
+
+		await(pendingParses);
+		spectrum = new SpectrumMatrix();
 
 		// Creating the reports dir
 		new File("workDir/AstorWorker-" + AndroidProject.getInstance().getProjectName() + "/faultLocalization/reports/").mkdirs();
 
+		// Coverage of previous sessions on the same sources
+		if(coverageCache != null)
+			coverageCache.close();
+		coverageCache = new CoverageCache(new File("workDir/cache/" + AndroidProject.getInstance().getProjectName() + "/coverage.dat"),
+				HashUtils.sha256(new File(AndroidProject.getInstance().getModuleLocation() + "/src")));
+
 		// Modifying build.gradle to run jacoco
 		AndroidProject.getInstance().activateCodeCoverage();
 	}
 
 
 	public static List<Line> searchSuspicious(String test, TestType type, boolean passing) throws Exception {
+		List<Line> candidates = new ArrayList<Line>();
+		CoverageTask coverage = runWithCoverage(test, type, collector(test, passing, candidates));
 
-		boolean result = generateXML(test, type);
-		if(result)
-			return processXML(test, passing);
+		if(coverage == null)
+			return candidates;
+
+		// Ranked lines are only needed when fault localization ends, so coverage may be read while the next test runs
+		if(isRankingEnabled())
+			readCoverage(coverage, pendingParses);
 		else
-			return new ArrayList<Line>();
+			coverage.run();
+
+		return candidates;
 	}
 
-	private static boolean generateXML(String test, TestType type) throws Exception {
+	/**
+	 * Processes a batch of tests of the same type, mapped to whether they
+	 * pass. Unit tests run in a single JVM with the JaCoCo agent, which is
+	 * reset and dumped between tests, instead of two Gradle builds per test.
+	 * That JVM only has the classpath of the tests, without what Gradle
+	 * adds: the mockable android.jar, testOptions or Robolectric. Projects
+	 * that use testOptions or Robolectric, and tests whose outcome in that
+	 * JVM differs from the one expected, run through Gradle one by one, as
+	 * instrumentation tests do. The candidates of each test go to the
+	 * listener as soon as its coverage is read.
+	 */
+	public static void searchSuspicious(Map<String, Boolean> tests, TestType type, CandidatesListener listener) throws Exception {
+		if(type.equals(TestType.UNIT) && AndroidProject.getInstance().unitTestsRunOnClasspath()) {
+			searchSuspiciousUnit(tests, listener);
+			return;
+		}
 
-		//Removing old .ec and .exec files
-		FileSystemUtils.findFilesWithExtensionAndDelete(new File(AndroidProject.getInstance().getLocation() + "/" + AndroidProject.getInstance().getMainFolder() + "/"), "ec");
-		FileSystemUtils.findFilesWithExtensionAndDelete(new File(AndroidProject.getInstance().getLocation() + "/" + AndroidProject.getInstance().getMainFolder() + "/"), "exec");
+		if(type.equals(TestType.UNIT))
+			logger.info("The unit tests use testOptions or Robolectric, so they run through Gradle");
+
+		searchSuspiciousEach(tests, type, listener);
+	}
+
+	private static void searchSuspiciousEach(Map<String, Boolean> tests, TestType type, CandidatesListener listener) throws Exception {
+		List<Future<?>> batchParses = new ArrayList<Future<?>>();
+
+		for(String test : tests.keySet()) {
+			List<Line> candidates = new ArrayList<Line>();
+			CoverageTask coverage = runWithCoverage(test, type, collector(test, tests.get(test), candidates));
+
+			readCoverage(() -> {
+				if(coverage != null)
+					coverage.run();
+				listener.onCandidates(test, candidates);
+			}, batchParses);
+		}
+
+		await(batchParses);
+	}
+
+	private static void searchSuspiciousUnit(Map<String, Boolean> batch, CandidatesListener listener) throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+		String separator = System.getProperty("path.separator");
+		Map<String, Boolean> tests = new LinkedHashMap<String, Boolean>();
+
+		for(String test : batch.keySet()) {
+			List<Line> candidates = new ArrayList<Line>();
+
+			if(coverageCache.read(TestType.UNIT, test, collector(test, batch.get(test), candidates)))
+				listener.onCandidates(test, candidates);
+			else
+				tests.put(test, batch.get(test));
+		}
+
+		if(tests.isEmpty())
+			return;
+
+		logger.info((batch.size() - tests.size()) + " tests found in the coverage cache");
+
+		logger.info("Compiling unit tests");
+		project.compileUnitTests();
+
+		File dumps = new File("workDir/AstorWorker-" + projectName + "/faultLocalization/batch");
+		FileUtils.deleteDirectory(dumps);
+		dumps.mkdirs();
+
+		ExecutionDataAnalyzer analyzer = new ExecutionDataAnalyzer(project.getDebugClassesDirectory());
+
+		// The worker classes go last so the project's own libraries take precedence
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.add("-javaagent:" + getAgentJar().getAbsolutePath() + "=output=none,dumponexit=false");
+		command.add("-cp");
+		command.add(project.getUnitTestClasspath() + separator + getWorkerClasspath());
+		command.add(CoverageTestRunner.class.getName());
+		command.add(dumps.getAbsolutePath());
+		command.addAll(tests.keySet());
+
+		logger.info("Running " + tests.size() + " unit tests with per-test coverage");
+		Set<String> pending = new LinkedHashSet<String>(tests.keySet());
+
+		CommandExecutorProcess.execute(command, project.getModuleLocation(), line -> {
+			if(!line.startsWith(CoverageTestRunner.PREFIX)) {
+				logger.debug(line);
+				return;
+			}
+
+			String[] fields = line.split("\t");
+			String test = fields[1];
+			List<Line> candidates = new ArrayList<Line>();
+			pending.remove(test);
+
+			// The test JVM does not run the tests as Gradle does
+			if(!fields[2].equals("NOT_FOUND") && fields[2].equals("PASSED") != tests.get(test)) {
+				logger.info(test + " " + fields[2].toLowerCase() + " outside Gradle, against what was expected, so it runs through Gradle");
+				new File(fields[3]).delete();
+				return;
+			}
+
+			if(fields[2].equals("NOT_FOUND"))
+				logger.info("\"" + test + "\" is not a test!");
+			else {
+				File dump = new File(fields[3]);
+				Map<String, List<Integer>> covered = new LinkedHashMap<String, List<Integer>>();
+				analyzer.analyze(dump, recorder(collector(test, tests.get(test), candidates), covered));
+				coverageCache.write(TestType.UNIT, test, covered);
+				dump.delete();
+				logger.info("Found " + candidates.size() + " candidates for " + test);
+			}
+
+			listener.onCandidates(test, candidates);
+			tests.remove(test);
+		});
+
+		// Tests never reported, e.g. because the test JVM died, also run through Gradle
+		for(String test : pending)
+			logger.info("No coverage was collected for " + test + " outside Gradle");
+
+		if(!tests.isEmpty())
+			searchSuspiciousEach(tests, TestType.UNIT, listener);
+	}
+
+	/**
+	 * Where the covered lines of a test go: straight into the spectrum when
+	 * the lines are only sent ranked, otherwise into the candidates list.
+	 */
+	private static CoverageListener collector(String test, boolean passing, List<Line> candidates) {
+		if(isRankingEnabled()) {
+			int row = spectrum.addTest(test, passing);
+			return (className, number) -> spectrum.cover(row, className, number);
+		}
+
+		return (className, number) -> candidates.add(new Line(number, className, test, passing));
+	}
+
+	/**
+	 * Runs the task right away, or on the parsing thread when "flparsing"
+	 * is "background" so the next test can run meanwhile. Tasks run one at
+	 * a time, in submission order.
+	 */
+	private static void readCoverage(CoverageTask task, List<Future<?>> pending) throws Exception {
+		if(!ConfigurationProperties.getProperty("flparsing").equals("background")) {
+			task.run();
+			return;
+		}
+
+		pending.add(getParsingExecutor().submit(() -> {
+			task.run();
+			return null;
+		}));
+	}
+
+	private static void await(List<Future<?>> pending) throws Exception {
+		try {
+			for(Future<?> parsing : pending)
+				parsing.get();
+		} catch(ExecutionException e) {
+			throw (Exception) e.getCause();
+		} finally {
+			pending.clear();
+		}
+	}
+
+	private static synchronized ExecutorService getParsingExecutor() {
+		if(parsingExecutor == null)
+			parsingExecutor = Executors.newSingleThreadExecutor();
 
-    	List<String> testTasks = new ArrayList<>();
+		return parsingExecutor;
+	}
+
+	private interface CoverageTask {
+		void run() throws Exception;
+	}
+
+	private static synchronized File getAgentJar() throws IOException {
+		if(agentJar == null)
+			agentJar = AgentJar.extractToTempLocation();
+
+		return agentJar;
+	}
+
+	private static String getWorkerClasspath() throws URISyntaxException {
+		return new File(CoverageTestRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+	}
+
+	/**
+	 * The coverage of the tests on the current sources, or null before
+	 * fault localization is first set up.
+	 */
+	public static CoverageCache getCoverageCache() {
+		return coverageCache;
+	}
 
-    	String task = null;
+	public static boolean isRankingEnabled() {
+		return ConfigurationProperties.hasProperty("flformula");
+	}
 
-    	if(type.equals(TestType.INSTRUMENTATION))
-    		task = AndroidProject.getInstance().getInstrumentationTestTask();
-    	
+	/**
+	 * Ranks every line covered by the tests processed so far and returns
+	 * the "fltopk" most suspicious ones.
+	 */
+	public static List<Line> rankSuspicious() throws Exception {
+		await(pendingParses);
 
-    	if(type.equals(TestType.UNIT))
-    		task = AndroidProject.getInstance().getUnitTestTask();
+		SuspiciousnessFormula formula = SuspiciousnessFormula.valueOf(ConfigurationProperties.getProperty("flformula").toUpperCase());
+		int k = ConfigurationProperties.getPropertyInt("fltopk");
 
-    	logger.info("Task selected: " + task);
+		List<Line> ranking = spectrum.rank(formula, k);
+		logger.info("Ranked " + spectrum.getLineCount() + " lines covered by " + spectrum.getTestCount() 
+				+ " tests with " + formula + ", sending the top " + ranking.size());
+		return ranking;
+	}
+
+	/**
+	 * Runs the test and returns the task that reads its coverage into the
+	 * listener, or null when there is no coverage to read. The coverage is
+	 * read from the XML report unless "flcoverage" is "execdata", which
+	 * analyzes the JaCoCo execution data against the debug classes Gradle
+	 * built, not the classes of "defaultbin".
+	 */
+	private static CoverageTask runWithCoverage(String test, TestType type, CoverageListener listener) throws Exception {
+		if(coverageCache.contains(type, test)) {
+			logger.info("Coverage of " + test + " found in the cache");
+			return () -> coverageCache.read(type, test, listener);
+		}
 
-    	List<String> output = null;
+		if(!runTest(test, type))
+			return null;
+
+		Map<String, List<Integer>> covered = new LinkedHashMap<String, List<Integer>>();
+		CoverageListener recorder = recorder(listener, covered);
+		CoverageTask coverage;
+
+		if(ConfigurationProperties.getProperty("flcoverage").equals("report")) {
+			if(!generateXML(test, type))
+				return null;
+
+			coverage = () -> processXML(test, recorder);
+		}
+		else {
+			File executionData = saveExecutionData(test);
+			if(executionData == null)
+				return null;
+
+			coverage = () -> analyzeExecutionData(test, executionData, recorder);
+		}
+
+		return () -> {
+			coverage.run();
+			coverageCache.write(type, test, covered);
+		};
+	}
+
+	/* Passes the lines on while keeping them, grouped by source file, "a/b/C", for the coverage cache */
+	private static CoverageListener recorder(CoverageListener listener, Map<String, List<Integer>> covered) {
+		return new CoverageListener() {
+			@Override
+			public void covered(String className, int number) {
+				covered("", className, number);
+			}
+
+			@Override
+			public void covered(String packageName, String className, int number) {
+				String source = packageName.isEmpty() ? className : packageName + "/" + className;
+				List<Integer> lines = covered.get(source);
+				if(lines == null)
+					covered.put(source, lines = new ArrayList<Integer>());
+
+				lines.add(number);
+				listener.covered(packageName, className, number);
+			}
+		};
+	}
+
+	private static String getTask(TestType type) {
+		if(type.equals(TestType.INSTRUMENTATION))
+			return AndroidProject.getInstance().getInstrumentationTestTask();
+
+		return AndroidProject.getInstance().getUnitTestTask();
+	}
+
+	private static boolean runTest(String test, TestType type) throws Exception {
+
+		//Removing old .ec and .exec files
+		FileSystemUtils.findFilesWithExtensionAndDelete(new File(AndroidProject.getInstance().getModuleLocation()), "ec");
+		FileSystemUtils.findFilesWithExtensionAndDelete(new File(AndroidProject.getInstance().getModuleLocation()), "exec");
+
+		String task = getTask(type);
+		logger.info("Task selected: " + task);
+
+		List<String> output = null;
 
 		// Running test task
 		if(type.equals(TestType.INSTRUMENTATION))
-			output = AndroidProject.getInstance().runTask("-Pandroid.testInstrumentationRunnerArguments.class=" + test + " " + task, false);
+			output = AndroidProject.getInstance().runDeviceTask("-Pandroid.testInstrumentationRunnerArguments.class=" + test + " " + task, false);
 
 		if(type.equals(TestType.UNIT))
 			output = AndroidProject.getInstance().runTask(task + " --tests=" + test.replaceAll("#","\\."), false);
@@ -97,6 +396,49 @@ public class AndroidFaultLocalization {
 			}
 		}
 
+		return true;
+	}
+
+	/**
+	 * Moves the .exec (unit tests) and .ec (instrumentation tests) files
+	 * written by the test run out of the build directory, so the next run
+	 * can start while they are read.
+	 */
+	private static File saveExecutionData(String test) throws Exception {
+		File buildDirectory = new File(AndroidProject.getInstance().getModuleLocation() + "/build");
+		File executionData = new File("workDir/AstorWorker-" + projectName + "/faultLocalization/exec/" + test.replaceAll("#", "\\."));
+		FileUtils.deleteDirectory(executionData);
+		executionData.mkdirs();
+
+		int files = 0;
+		for(String extension : new String[] { "exec", "ec" }) {
+			for(String path : FileSystemUtils.findFilesWithExtension(buildDirectory, extension, true)) {
+				if(path.endsWith("." + extension))
+					FileUtils.moveFile(new File(path), new File(executionData, (files++) + "." + extension));
+			}
+		}
+
+		if(files == 0) {
+			logger.info("No execution data was written for " + test);
+			FileUtils.deleteDirectory(executionData);
+			return null;
+		}
+
+		return executionData;
+	}
+
+	private static void analyzeExecutionData(String test, File executionData, CoverageListener listener) throws Exception {
+		logger.info("Analyzing the execution data of " + test);
+
+		new ExecutionDataAnalyzer(AndroidProject.getInstance().getDebugClassesDirectory())
+				.analyze(Arrays.asList(executionData.listFiles()), listener);
+
+		FileUtils.deleteDirectory(executionData);
+	}
+
+	private static boolean generateXML(String test, TestType type) throws Exception {
+		String task = getTask(type);
+
 		// Running jacoco coverage
 		List<String> coverageOutput = AndroidProject.getInstance().runTask("--continue " + task + "Coverage", false);
 
@@ -124,61 +466,11 @@ public class AndroidFaultLocalization {
 		return true;	
 	}
 
-	private static List<Line> processXML(String test, boolean passing) 
-			throws IOException, ParserConfigurationException, SAXException {
-
-		logger.info("Processing XMLs for the test " + test);
-		
-		List<Line> candidates = new ArrayList<>();
-
-		String testXML = "workDir/AstorWorker-" + projectName + "/faultLocalization/reports/" + test.replaceAll("#", "\\.") + ".xml";
-
-		logger.info("Processing " + test.replaceAll("#", "\\.") + ".xml");
-
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    	factory.setValidating(false);
-		factory.setNamespaceAware(true);
-		factory.setFeature("http://xml.org/sax/features/namespaces", false);
-		factory.setFeature("http://xml.org/sax/features/validation", false);
-		factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-		factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-    	DocumentBuilder builder = factory.newDocumentBuilder();
-
-    	Document testXMLFile = builder.parse(testXML);
-    	
-    	NodeList sourcefileList = testXMLFile.getElementsByTagName("sourcefile");
-    	
-    	for (int i = 0; i < sourcefileList.getLength() ; i++ ) {
-    		Node node = sourcefileList.item(i);
-    		
-    		if(node.getNodeType() == Node.ELEMENT_NODE){
-    			Element sourcefile = (Element) node;
-    			String className = sourcefile.getAttribute("name").split(".java")[0];
-    			logger.info("Source found on " + testXML + ": " + className);
-
-    			NodeList childList = sourcefile.getChildNodes();
-
-    			for (int j = 0; j < childList.getLength() ; j++) {
-    				Node child = childList.item(j);
-
-    				if (child.getNodeType() == Node.ELEMENT_NODE) {
-    					Element childElement = (Element) child;
-
-    					//If childElement is a line and the line was executed by the test
-    					if(childElement.getTagName() == "line" 
-    							&&  Integer.parseInt(childElement.getAttribute("ci")) != 0){
-
-    						candidates.add(new Line(Integer.parseInt(childElement.getAttribute("nr")), 
-	    									className, test, passing));
-    					}	
-    				}
-    			}
-    		}
-    		
-    	}
-		
-		logger.info("Found "+candidates.size()+" candidates");
-    	return candidates;
+	private static void processXML(String test, CoverageListener listener) throws Exception {
+		File report = new File("workDir/AstorWorker-" + projectName + "/faultLocalization/reports/" + test.replaceAll("#", "\\.") + ".xml");
+
+		logger.info("Processing " + report.getName());
+		CoverageReportParser.parse(report, listener);
 	}
 
 }
\ No newline at end of file
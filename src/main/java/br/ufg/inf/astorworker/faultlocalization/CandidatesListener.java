@@ -0,0 +1,12 @@
+package br.ufg.inf.astorworker.faultlocalization;
+
+import java.util.List;
+
+import br.ufg.inf.astorworker.faultlocalization.entities.Line;
+
+/**
+ * Receives the candidates of each test of a batch as soon as they are known.
+ */
+public interface CandidatesListener {
+	void onCandidates(String test, List<Line> candidates) throws Exception;
+}
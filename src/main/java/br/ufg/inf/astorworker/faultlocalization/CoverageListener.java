@@ -0,0 +1,15 @@
+package br.ufg.inf.astorworker.faultlocalization;
+
+/**
+ * Receives the lines executed by a test, one at a time. The class is the
+ * name of its source file without ".java", as fault localization reports
+ * it; listeners that must tell apart same-named files of different
+ * packages also get the package, "a/b", or "" for the default package.
+ */
+public interface CoverageListener {
+	void covered(String className, int number);
+
+	default void covered(String packageName, String className, int number) {
+		covered(className, number);
+	}
+}
@@ -0,0 +1,63 @@
+package br.ufg.inf.astorworker.faultlocalization;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams a JaCoCo XML report and reports every line with covered
+ * instructions as it is read, so memory does not grow with the report.
+ */
+public class CoverageReportParser {
+	private static final XMLInputFactory factory = createFactory();
+
+	public static void parse(File report, CoverageListener listener) throws IOException, XMLStreamException {
+		InputStream in = new BufferedInputStream(new FileInputStream(report), 64 * 1024);
+
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			String packageName = "";
+			String className = null;
+
+			while(reader.hasNext()) {
+				int event = reader.next();
+
+				if(event == XMLStreamConstants.START_ELEMENT) {
+					String element = reader.getLocalName();
+
+					if(element.equals("package"))
+						packageName = reader.getAttributeValue(null, "name");
+
+					else if(element.equals("sourcefile"))
+						className = reader.getAttributeValue(null, "name").split(".java")[0];
+
+					// Only the covered lines need their number parsed
+					else if(className != null && element.equals("line") && !reader.getAttributeValue(null, "ci").equals("0"))
+						listener.covered(packageName, className, Integer.parseInt(reader.getAttributeValue(null, "nr")));
+				}
+				else if(event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("sourcefile"))
+					className = null;
+			}
+
+			reader.close();
+		} finally {
+			in.close();
+		}
+	}
+
+	/* The reports reference report.dtd, which is neither loaded nor validated */
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+		return factory;
+	}
+}
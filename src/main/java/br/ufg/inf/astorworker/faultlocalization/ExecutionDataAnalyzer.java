@@ -0,0 +1,91 @@
+package br.ufg.inf.astorworker.faultlocalization;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.CoverageBuilder;
+import org.jacoco.core.analysis.ISourceFileCoverage;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.tools.ExecFileLoader;
+
+/**
+ * Reads a JaCoCo execution data file and reports the lines it covers, the
+ * same lines the "&lt;task&gt;Coverage" XML report lists with covered
+ * instructions. Only the classes hit by the test are analyzed.
+ */
+public class ExecutionDataAnalyzer {
+	private File classesDirectory;
+
+	public ExecutionDataAnalyzer(File classesDirectory) {
+		this.classesDirectory = classesDirectory;
+	}
+
+	public void analyze(File executionDataFile, CoverageListener listener) throws IOException {
+		analyze(Collections.singletonList(executionDataFile), listener);
+	}
+
+	/**
+	 * Merges the execution data files, e.g. the ones written by each
+	 * device, before reading the covered lines.
+	 */
+	public void analyze(List<File> executionDataFiles, CoverageListener listener) throws IOException {
+		ExecFileLoader loader = new ExecFileLoader();
+		for(File executionDataFile : executionDataFiles)
+			loader.load(executionDataFile);
+
+		ExecutionDataStore store = loader.getExecutionDataStore();
+
+		CoverageBuilder builder = new CoverageBuilder();
+		Analyzer analyzer = new Analyzer(store, builder);
+
+		for(ExecutionData data : store.getContents()) {
+			if(!hasHits(data) || isExcluded(data.getName()))
+				continue;
+
+			File classFile = new File(classesDirectory, data.getName() + ".class");
+			if(!classFile.isFile())
+				continue;
+
+			InputStream in = new FileInputStream(classFile);
+			try {
+				analyzer.analyzeClass(in, classFile.getPath());
+			} finally {
+				in.close();
+			}
+		}
+
+		for(ISourceFileCoverage source : builder.getSourceFiles()) {
+			String className = source.getName().split(".java")[0];
+
+			for(int number = source.getFirstLine(); number <= source.getLastLine() && number > 0; number++) {
+				if(source.getLine(number).getInstructionCounter().getCoveredCount() > 0)
+					listener.covered(source.getPackageName(), className, number);
+			}
+		}
+	}
+
+	private static boolean hasHits(ExecutionData data) {
+		for(boolean probe : data.getProbes()) {
+			if(probe)
+				return true;
+		}
+
+		return false;
+	}
+
+	/* The same classes coverage.gradle leaves out of the reports */
+	private static boolean isExcluded(String name) {
+		String simpleName = name.substring(name.lastIndexOf('/') + 1);
+
+		return simpleName.equals("R") || simpleName.startsWith("R$")
+				|| simpleName.startsWith("BuildConfig") || simpleName.startsWith("Manifest")
+				|| simpleName.contains("$ViewInjector") || simpleName.contains("$ViewBinder")
+				|| simpleName.contains("$Lambda$");
+	}
+}
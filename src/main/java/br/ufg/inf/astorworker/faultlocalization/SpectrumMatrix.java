@@ -0,0 +1,137 @@
+package br.ufg.inf.astorworker.faultlocalization;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import br.ufg.inf.astorworker.enums.SuspiciousnessFormula;
+import br.ufg.inf.astorworker.faultlocalization.entities.Line;
+
+/**
+ * Test x line coverage matrix. Every test is a row holding a bitset of the
+ * lines it executed, lines are numbered in the order they are first seen.
+ */
+public class SpectrumMatrix {
+	private Map<String, Integer> lineIndex = new HashMap<String, Integer>();
+	private List<String> lineClasses = new ArrayList<String>();
+	private List<Integer> lineNumbers = new ArrayList<Integer>();
+	private Map<String, Integer> testIndex = new HashMap<String, Integer>();
+	private List<String> tests = new ArrayList<String>();
+	private List<Boolean> passing = new ArrayList<Boolean>();
+	private List<BitSet> coverage = new ArrayList<BitSet>();
+
+	/**
+	 * Adds a row for the test, replacing the previous one if the test was
+	 * already added. Returns the row to be filled with {@link #cover}.
+	 */
+	public synchronized int addTest(String test, boolean testPassed) {
+		Integer row = testIndex.get(test);
+
+		if(row == null) {
+			row = tests.size();
+			testIndex.put(test, row);
+			tests.add(test);
+			passing.add(testPassed);
+			coverage.add(new BitSet());
+		}
+		else {
+			passing.set(row, testPassed);
+			coverage.set(row, new BitSet());
+		}
+
+		return row;
+	}
+
+	public synchronized void cover(int row, String className, int number) {
+		String key = className + ":" + number;
+		Integer column = lineIndex.get(key);
+
+		if(column == null) {
+			column = lineClasses.size();
+			lineIndex.put(key, column);
+			lineClasses.add(className);
+			lineNumbers.add(number);
+		}
+
+		coverage.get(row).set(column);
+	}
+
+	public void addTest(String test, boolean testPassed, List<Line> covered) {
+		int row = addTest(test, testPassed);
+		for(Line line : covered)
+			cover(row, line.getClassName(), line.getNumber());
+	}
+
+	/**
+	 * Scores every line executed by at least one failing test and returns
+	 * the k most suspicious ones, best first.
+	 */
+	public synchronized List<Line> rank(SuspiciousnessFormula formula, int k) {
+		int lines = lineClasses.size();
+		int[] failingExecuted = new int[lines];
+		int[] passingExecuted = new int[lines];
+		int totalFailing = 0;
+		int totalPassing = 0;
+
+		for(int row = 0; row < tests.size(); row++) {
+			int[] counters = passing.get(row) ? passingExecuted : failingExecuted;
+			BitSet executed = coverage.get(row);
+
+			for(int column = executed.nextSetBit(0); column >= 0; column = executed.nextSetBit(column + 1))
+				counters[column]++;
+
+			if(passing.get(row))
+				totalPassing++;
+			else
+				totalFailing++;
+		}
+
+		double[] scores = new double[lines];
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.max(k, 1),
+				(a, b) -> scores[a] != scores[b] ? Double.compare(scores[a], scores[b]) : Integer.compare(b, a));
+
+		for(int column = 0; column < lines; column++) {
+			if(failingExecuted[column] == 0)
+				continue;
+
+			scores[column] = formula.compute(failingExecuted[column], passingExecuted[column],
+					totalFailing - failingExecuted[column], totalPassing - passingExecuted[column]);
+
+			best.add(column);
+			if(best.size() > k)
+				best.poll();
+		}
+
+		List<Line> ranking = new ArrayList<Line>(best.size());
+		while(!best.isEmpty()) {
+			int column = best.poll();
+			ranking.add(0, new Line(lineNumbers.get(column), lineClasses.get(column), testsCovering(column),
+					failingExecuted[column], totalFailing - failingExecuted[column], passingExecuted[column],
+					totalPassing, scores[column]));
+		}
+
+		return ranking;
+	}
+
+	private List<String> testsCovering(int column) {
+		List<String> covering = new ArrayList<String>();
+
+		for(int row = 0; row < tests.size(); row++) {
+			if(coverage.get(row).get(column))
+				covering.add(tests.get(row));
+		}
+
+		return covering;
+	}
+
+	public synchronized int getTestCount() {
+		return tests.size();
+	}
+
+	public synchronized int getLineCount() {
+		return lineClasses.size();
+	}
+}
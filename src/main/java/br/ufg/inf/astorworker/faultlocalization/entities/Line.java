@@ -27,6 +27,18 @@ public class Line implements Serializable {
 		addTest(test, passing);
 	}
 
+	public Line(int number, String className, List<String> tests, int failingExecuted, int failingNotExecuted,
+			int passingExecuted, int totalPassing, double suspiciousValue){
+		this.number = number;
+		this.className = className;
+		this.tests = tests;
+		this.failingExecuted = failingExecuted;
+		this.failingNotExecuted = failingNotExecuted;
+		this.passingExecuted = passingExecuted;
+		this.totalPassing = totalPassing;
+		this.suspiciousValue = suspiciousValue;
+	}
+
 	public int getNumber(){
 		return number;
 	}
@@ -0,0 +1,119 @@
+package br.ufg.inf.astorworker.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import br.ufg.inf.astorworker.entities.Frame;
+import br.ufg.inf.astorworker.enums.MessageType;
+
+/**
+ * Reads the frames sent by the host over a single persistent connection.
+ * Frames answering a pending request are handed to whoever waits on
+ * {@link #expectReply(int)}, every other frame is queued as a new request.
+ */
+public class FramedConnectionHandler extends Thread {
+	public static final int MAX_FRAME_SIZE = 512 * 1024 * 1024;
+	private static final int BUFFER = 64 * 1024;
+	private Socket socket;
+	private DataInputStream input;
+	private DataOutputStream output;
+	private BlockingQueue<Frame> requests;
+	private Map<Integer, BlockingQueue<Frame>> pendingReplies;
+	private Logger logger = Logger.getLogger(FramedConnectionHandler.class);
+
+	public FramedConnectionHandler(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER));
+		output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER));
+		requests = new LinkedBlockingQueue<Frame>();
+		pendingReplies = new ConcurrentHashMap<Integer, BlockingQueue<Frame>>();
+		setDaemon(true);
+	}
+
+	@Override
+	public void run(){
+		try {
+			while(true){
+				Frame frame = readFrame();
+				BlockingQueue<Frame> waiting = pendingReplies.remove(frame.getRequestId());
+
+				if(waiting != null)
+					waiting.put(frame);
+				else
+					requests.put(frame);
+			}
+		}
+
+		catch(EOFException e){
+			logger.info("Connection closed by " + socket.getRemoteSocketAddress());
+		}
+
+		catch(Exception e){
+			logger.info("FramedConnectionHandler had problems");
+			e.printStackTrace();
+		}
+
+		// Unblocks the command loop when the host goes away
+		requests.add(new Frame(MessageType.END, 0, new byte[0]));
+	}
+
+	public Frame nextFrame() throws InterruptedException {
+		return requests.take();
+	}
+
+	/**
+	 * Registers interest in the next frame the host sends for the given
+	 * request. Must be called before the message that triggers the answer
+	 * is sent, the answer is then taken from the returned queue.
+	 */
+	public BlockingQueue<Frame> expectReply(int requestId) {
+		BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(1);
+		pendingReplies.put(requestId, queue);
+		return queue;
+	}
+
+	public void send(Frame frame) throws IOException {
+		synchronized(output){
+			output.writeInt(Frame.HEADER_SIZE + frame.getPayload().length);
+			output.writeByte(frame.getType().getCode());
+			output.writeInt(frame.getRequestId());
+			output.write(frame.getPayload());
+			output.flush();
+		}
+	}
+
+	public void send(MessageType type, int requestId, byte[] payload) throws IOException {
+		send(new Frame(type, requestId, payload));
+	}
+
+	private Frame readFrame() throws IOException {
+		int length = input.readInt();
+
+		if(length < Frame.HEADER_SIZE || length > MAX_FRAME_SIZE)
+			throw new IOException("Invalid frame length: " + length);
+
+		MessageType type = MessageType.fromCode(input.readByte());
+		int requestId = input.readInt();
+		byte[] payload = new byte[length - Frame.HEADER_SIZE];
+		input.readFully(payload);
+
+		return new Frame(type, requestId, payload);
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -10,12 +10,23 @@ import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
@@ -31,14 +42,31 @@ import fr.inria.astor.core.validation.entity.TestResult;
 import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
 import fr.inria.astor.core.setup.ConfigurationProperties;
 import br.ufg.inf.astorworker.executors.AndroidToolsExecutorProcess;
-import br.ufg.inf.astorworker.executors.JavaProjectCompiler;
+import br.ufg.inf.astorworker.executors.BuildSession;
+import br.ufg.inf.astorworker.executors.DevicePool;
+import br.ufg.inf.astorworker.executors.VariantCompiler;
+import br.ufg.inf.astorworker.executors.Watchdog;
 import br.ufg.inf.astorworker.validators.ProgramValidator;
+import br.ufg.inf.astorworker.validators.VariantPipeline;
+import br.ufg.inf.astorworker.validators.VariantBatchValidator;
 import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Frame;
+import br.ufg.inf.astorworker.entities.Manifest;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.cache.BlobStore;
+import br.ufg.inf.astorworker.cache.ValidationCache;
+import br.ufg.inf.astorworker.codec.ResultCodec;
 import br.ufg.inf.astorworker.faultlocalization.entities.Line;
 import br.ufg.inf.astorworker.faultlocalization.AndroidFaultLocalization;
+import br.ufg.inf.astorworker.faultlocalization.CandidatesListener;
 import br.ufg.inf.astorworker.handlers.DataConnectionHandler;
+import br.ufg.inf.astorworker.handlers.FramedConnectionHandler;
 import br.ufg.inf.astorworker.utils.ZipUtils;
+import br.ufg.inf.astorworker.utils.DeltaUtils;
+import br.ufg.inf.astorworker.utils.ManifestUtils;
 import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.enums.MessageType;
+import br.ufg.inf.astorworker.enums.Phase;
 
 
 /**
@@ -50,12 +78,14 @@ public class AstorWorker  {
 	protected static Logger logger = Logger.getRootLogger();
 	private static Options options = new Options();
 
-	private ObjectOutputStream hostObjectOutput = null;
 	private Socket hostByteSocket = null;
 	private Socket hostStringSocket = null;
 	private ServerSocket astorWorkerServerSocket;
 	private PrintWriter hostStringOutput;
 	private BufferedReader hostStringInput;
+	private FramedConnectionHandler hostConnection;
+	private ExecutorService commandExecutor;
+	private VariantPipeline pipeline;
 	private boolean faultLocalizationInitialized = false;
 	private String hostAddress;
 	private String hostIP;
@@ -69,6 +99,35 @@ public class AstorWorker  {
 		options.addOption("workerip", true, "IP address of the machine running AstorWorker");
 		options.addOption("workerport", true, "AstorWorker's port");
 		options.addOption("androidsdk", true, "Location of the Android SDK");
+		options.addOption("protocol", true, "Protocol used to talk to the host: line (default) or framed");
+		options.addOption("resultcodec", true, "Encoding of the results sent to the host: java (default) or compact");
+		options.addOption("flformula", true, "Rank the suspicious lines on the worker with this formula: ochiai, tarantula or dstar");
+		options.addOption("fltopk", true, "Number of ranked suspicious lines sent to the host (default 100)");
+		options.addOption("flcoverage", true, "Where coverage is read from: report (default), the XML report, or execdata, the JaCoCo execution data");
+		options.addOption("flparsing", true, "When coverage reports are parsed: inline (default) or background, while the next test runs");
+		options.addOption("blobstorecap", true, "Maximum size of the local blob store in MB (default 1024)");
+		options.addOption("compilethreads", true, "Threads used to compile the variants of a PROCESS_VARIANTS batch (default: number of cores)");
+		options.addOption("slots", true, "Number of project copies where variants are tested in parallel (default 1)");
+		options.addOption("devices", true, "Comma-separated serials of the devices used to run instrumentation tests (default: every attached device)");
+		options.addOption("shard", false, "Split the instrumentation regression across the free devices");
+		options.addOption("failfast", false, "Stop the tests of a variant at the first one that fails");
+		options.addOption("commandtimeout", true, "Seconds a single command may run (default 0, no limit)");
+		options.addOption("compiletimeout", true, "Seconds the project or its tests may take to compile (default 1800)");
+		options.addOption("failingtimeout", true, "Seconds the failing tests of a variant may take (default 600)");
+		options.addOption("regressiontimeout", true, "Seconds the regression of a variant may take (default 3600)");
+		options.addOption("fltimeout", true, "Seconds the fault localization of a test or batch may take (default 0, no limit)");
+		options.addOption("baseline", true, "Times the regression runs on the original program during setup to derive the time limits of the tests (default 0, fixed limits)");
+		options.addOption("timeoutfactor", true, "With baseline, how many times their baseline duration the tests of a variant may take (default 3)");
+		options.addOption("timeoutmargin", true, "With baseline, seconds added to the time limits derived from it (default 30)");
+		options.addOption("regressionselection", true, "Run only the regression tests that cover the changes of a variant: off (default), safe, which runs the whole regression on a candidate fix, or fast");
+		options.addOption("prioritize", false, "Run first the tests that failed most often on earlier variants for the time they take");
+		options.addOption("singlepass", false, "Run the failing unit tests and the regression of a variant in one request to a test JVM, with unitrunner jvm");
+		options.addOption("buildsession", false, "Run Gradle tasks through a warm Tooling API connection per project slot instead of a gradlew process per task");
+		options.addOption("buildsessionbuilds", true, "Builds after which a build session and its daemon are recycled (default 100)");
+		options.addOption("unitrunner", true, "How unit tests validate variants: gradle (default), with the test task, or jvm, on the compiled classes in warm JVMs");
+		options.addOption("validationcache", true, "Number of validation results of equivalent variants kept in memory (default 0, off)");
+		options.addOption("validationcachedisk", false, "Also keep the validation results on disk, for later sessions");
+		options.addOption("pipeline", false, "With the framed protocol, receive and compile the next variants while the current one is tested");
 		options.addOption("help", false, "Print help and usage");
 	}
 
@@ -96,137 +155,411 @@ public class AstorWorker  {
 			hostAddress = hostIP + ":" + ConfigurationProperties.properties.getProperty("hostport");
 
 			AndroidToolsExecutorProcess.setup(ConfigurationProperties.getProperty("androidsdk"));
+			DevicePool.getInstance().setup();
 
-			new DataConnectionHandler(workerPort).start();
+			if(ConfigurationProperties.getProperty("protocol").equals("framed"))
+				runFramedProtocol();
+			else
+				runLineProtocol();
 
-			logger.info("ServerSocket created on port " + workerPort);
+		} catch(Exception e){
+			logger.error("There was an error while processing the project, error:\n" + e.toString());
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 
-			logger.info("Trying to connect to " + hostAddress);
-			while(true){
-				try{
-					hostStringSocket = new Socket(hostIP, hostPort);
-					if (hostStringSocket != null) break; 
-				}
-				catch (IOException e) { 
-					Thread.sleep(1000); 
-				}
+	private void connectToHost() throws Exception {
+		logger.info("Trying to connect to " + hostAddress);
+		while(true){
+			try{
+				hostStringSocket = new Socket(hostIP, hostPort);
+				if (hostStringSocket != null) break; 
+			}
+			catch (IOException e) { 
+				Thread.sleep(1000); 
 			}
+		}
 
-			logger.info("Connected to " + hostAddress);
-			
-			logger.info("Sending connection information to " + hostAddress);
+		logger.info("Connected to " + hostAddress);
+	}
 
-			hostStringOutput = new PrintWriter(hostStringSocket.getOutputStream(), true);
-			hostStringOutput.println(workerIP + ":" + workerPort);
+	private void runLineProtocol() throws Exception {
+		new DataConnectionHandler(workerPort).start();
 
-			logger.info("\"" + workerIP + ":" + workerPort + "\" sent to " + hostAddress);
+		logger.info("ServerSocket created on port " + workerPort);
 
-			hostStringInput = new BufferedReader(new InputStreamReader(hostStringSocket.getInputStream()));
+		connectToHost();
+		
+		logger.info("Sending connection information to " + hostAddress);
 
+		// The slot count is only added when there are several, older hosts expect "ip:port"
+		String connectionInformation = workerIP + ":" + workerPort + (getSlots() > 1 ? ":" + getSlots() : "");
 
+		hostStringOutput = new PrintWriter(hostStringSocket.getOutputStream(), true);
+		hostStringOutput.println(connectionInformation);
 
-			while(true){
+		logger.info("\"" + connectionInformation + "\" sent to " + hostAddress);
 
-				logger.info("Waiting for instructions from " + hostAddress);
+		hostStringInput = new BufferedReader(new InputStreamReader(hostStringSocket.getInputStream()));
 
-				String action = hostStringInput.readLine();
-				logger.info("ACTION: " + action);
 
-				if(action == null || action.equals("END")){
-					logger.info("Repair finished!");
-					System.exit(0);
-				}
 
-				switch(action){
-					case "PROCESS_VARIANT":
-						receiveAndProcessVariant();
-						break;
+		while(true){
 
-					case "SEND_PROJECT_NAME":
-						receiveProjectName();
-						createWorkingDirectory();
-						break;
+			logger.info("Waiting for instructions from " + hostAddress);
 
-					case "SEND_PROJECT":
-						receiveAndProcessProject();
-						break;
+			String action = hostStringInput.readLine();
+			logger.info("ACTION: " + action);
 
-					case "SEND_FAILING_TEST":
-						receiveFailingTest();
-						break;
+			if(action == null || action.equals("END")){
+				BuildSession.closeAll();
+				logger.info(ValidationCache.getInstance().getStatistics());
+				logger.info("Repair finished!");
+				System.exit(0);
+			}
 
-					case "FAULT_LOCALIZATION":
-						startFaultLocalization();
-						break;
+			switch(action){
+				case "PROCESS_VARIANT":
+					receiveAndProcessVariant(false);
+					break;
+
+				case "PROCESS_VARIANT_DELTA":
+					receiveAndProcessVariant(true);
+					break;
+
+				case "PROCESS_VARIANTS":
+					receiveAndProcessVariants();
+					break;
+
+				case "SEND_PROJECT_NAME":
+					receiveProjectName();
+					createWorkingDirectory();
+					break;
+
+				case "SEND_PROJECT":
+					receiveAndProcessProject();
+					break;
+
+				case "SEND_PROJECT_MANIFEST":
+					receiveProjectManifest();
+					break;
+
+				case "PROCESS_VARIANT_MANIFEST":
+					receiveAndProcessVariantManifest();
+					break;
+
+				case "SEND_FAILING_TEST":
+					receiveFailingTest();
+					break;
+
+				case "FAULT_LOCALIZATION":
+					startFaultLocalization();
+					break;
+
+				case "FAULT_LOCALIZATION_BATCH":
+					startBatchFaultLocalization();
+					break;
+
+				case "END_FAULT_LOCALIZATION":
+					finishFaultLocalization();
+					if(AndroidFaultLocalization.isRankingEnabled())
+						sendRanking();
+					break;
+			}
 
-					case "END_FAULT_LOCALIZATION":
-						finishFaultLocalization();
-						break;
-				}
+		}
+	}
 
+	/**
+	 * Serves the host over a single persistent connection. Commands are read
+	 * ahead by the connection handler and executed in arrival order, every
+	 * reply carries the id of the request it answers.
+	 */
+	private void runFramedProtocol() throws Exception {
+		connectToHost();
+
+		hostConnection = new FramedConnectionHandler(hostStringSocket);
+		hostConnection.start();
+		commandExecutor = Executors.newSingleThreadExecutor();
+		if(ConfigurationProperties.getProperty("pipeline").equals("true") || getSlots() > 1)
+			pipeline = new VariantPipeline(getSlots());
+
+		logger.info("Sending connection information to " + hostAddress);
+		hostConnection.send(MessageType.HELLO, 0, (workerIP + ":" + workerPort + ":" + getSlots()).getBytes(StandardCharsets.UTF_8));
+
+		while(true){
+			final Frame frame = hostConnection.nextFrame();
+			logger.info("FRAME: " + frame);
+
+			if(frame.getType().equals(MessageType.END)){
+				commandExecutor.shutdown();
+				commandExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				if(pipeline != null)
+					pipeline.shutdown();
+				BuildSession.closeAll();
+				logger.info(ValidationCache.getInstance().getStatistics());
+				logger.info("Repair finished!");
+				System.exit(0);
 			}
 
-		} catch(Exception e){
-			logger.error("There was an error while processing the project, error:\n" + e.toString());
-			e.printStackTrace();
-			System.exit(1);
+			commandExecutor.execute(() -> dispatchFrame(frame));
 		}
 	}
 
-	private void receiveAndProcessVariant() throws Exception {
-		File variant;
-		File rJavaLocationProject;
-		File rJavaLocationVariant;
-		TestCasesProgramValidationResult validationResult = null;
+	private static int getSlots() {
+		return ConfigurationProperties.getPropertyInt("slots");
+	}
 
-		logger.info("Waiting for variant to process...");
-		hostByteSocket = DataConnectionHandler.getSocket();
-		logger.info("Connected to " + hostAddress);
+	/**
+	 * With the pipeline enabled, variants are handed to it and the next
+	 * command is read right away. Any other command first waits for the
+	 * variants in flight, so it sees the same state it would sequentially.
+	 */
+	private void dispatchFrame(Frame frame) {
+		if(pipeline == null){
+			processFrame(frame);
+			return;
+		}
 
-		logger.info("Receiving variant from " 
-				+ hostAddress + " ...");
+		switch(frame.getType()){
+			case PROCESS_VARIANT:
+			case PROCESS_VARIANT_DELTA:
+				pipeline.submit(() -> receiveVariant(new ByteArrayInputStream(frame.getPayload()), 
+						frame.getType().equals(MessageType.PROCESS_VARIANT_DELTA)), (result, error) -> reply(frame, result, error));
+				break;
 
-		variant = ZipUtils.getInstance().receiveFolder(ConfigurationProperties.getProperty("projectname"), 
-				hostByteSocket.getInputStream());
+			case VARIANT_MANIFEST:
+				pipeline.submit(() -> receiveManifest(frame, ManifestUtils::toVariant), (result, error) -> reply(frame, result, error));
+				break;
 
-		logger.info("File "+variant.getName()+" received!");
+			default:
+				pipeline.drain();
+				processFrame(frame);
+		}
+	}
 
-		logger.info("Processing " + variant.getName() + " ...");
+	private void reply(Frame frame, TestCasesProgramValidationResult result, Exception error) {
+		try {
+			if(error != null)
+				throw error;
 
-		if(JavaProjectCompiler.compile(variant) == true){
-			logger.info(variant.getName() + " compiles!");
-			
-			logger.info("Validating " + variant.getName() + "...");
-			validationResult = ProgramValidator.validate(variant);
-			validationResult.setCompilationSuccess(true);
+			hostConnection.send(MessageType.VALIDATION_RESULT, frame.getRequestId(), encode(result));
+		} catch(Exception e){
+			sendError(frame, e);
+		}
+	}
 
-			if(validationResult.isSuccessful())
-				logger.info(variant.getName() + " is a fix!!!");
-			else
-				logger.info(variant.getName() + " is not a fix");
+	private void processFrame(Frame frame) {
+		try {
+			switch(frame.getType()){
+				case PROCESS_VARIANT:
+				case PROCESS_VARIANT_DELTA:
+					TestCasesProgramValidationResult validationResult = processVariant(receiveVariant(
+							new ByteArrayInputStream(frame.getPayload()), frame.getType().equals(MessageType.PROCESS_VARIANT_DELTA)));
+					hostConnection.send(MessageType.VALIDATION_RESULT, frame.getRequestId(), encode(validationResult));
+					break;
+
+				case PROCESS_VARIANTS:
+					VariantBatchValidator.validate(ZipUtils.receiveVariants(new ByteArrayInputStream(frame.getPayload())), (variant, result) -> {
+						ByteArrayOutputStream reply = new ByteArrayOutputStream();
+						DataOutputStream replyOutput = new DataOutputStream(reply);
+						replyOutput.writeUTF(variant.getName());
+						replyOutput.write(encode(result));
+						hostConnection.send(MessageType.VARIANT_RESULT, frame.getRequestId(), reply.toByteArray());
+					});
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case SEND_PROJECT_NAME:
+					setProjectName(frame.getPayloadAsString());
+					createWorkingDirectory();
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case SEND_PROJECT:
+					processProject(new ByteArrayInputStream(frame.getPayload()));
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case PROJECT_MANIFEST:
+					AndroidProject.getInstance().setup(receiveManifest(frame, this::materializeProject));
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case VARIANT_MANIFEST:
+					TestCasesProgramValidationResult manifestResult = processVariant(receiveManifest(frame, ManifestUtils::toVariant));
+					hostConnection.send(MessageType.VALIDATION_RESULT, frame.getRequestId(), encode(manifestResult));
+					break;
+
+				case SEND_FAILING_TEST:
+					setFailingTest(frame.getPayloadAsString());
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case FAULT_LOCALIZATION:
+					List<Line> candidates = searchSuspicious(frame.getPayloadAsString());
+					hostConnection.send(MessageType.CANDIDATES, frame.getRequestId(), encode(candidates));
+					break;
+
+				case FAULT_LOCALIZATION_BATCH:
+					searchSuspicious(Arrays.asList(frame.getPayloadAsString().split("\n")), (test, batchCandidates) -> {
+						ByteArrayOutputStream reply = new ByteArrayOutputStream();
+						DataOutputStream replyOutput = new DataOutputStream(reply);
+						replyOutput.writeUTF(test);
+						replyOutput.write(encode(batchCandidates));
+						hostConnection.send(MessageType.TEST_CANDIDATES, frame.getRequestId(), reply.toByteArray());
+					});
+					hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				case END_FAULT_LOCALIZATION:
+					finishFaultLocalization();
+					if(AndroidFaultLocalization.isRankingEnabled())
+						hostConnection.send(MessageType.CANDIDATES, frame.getRequestId(), encode(AndroidFaultLocalization.rankSuspicious()));
+					else
+						hostConnection.send(MessageType.ACK, frame.getRequestId(), null);
+					break;
+
+				default:
+					throw new IllegalArgumentException("Unexpected message: " + frame.getType());
+			}
+		} catch(Exception e){
+			sendError(frame, e);
 		}
-		else {
-			logger.info(variant.getName() + " does not compile!");
-			validationResult = new TestCasesProgramValidationResult(null);
-			validationResult.setCompilationSuccess(false);
+	}
+
+	private void sendError(Frame frame, Exception e) {
+		logger.error("There was an error while processing " + frame + ", error:\n" + e.toString());
+		e.printStackTrace();
+
+		try {
+			hostConnection.send(MessageType.ERROR, frame.getRequestId(), e.toString().getBytes(StandardCharsets.UTF_8));
+		} catch(IOException ex){
+			logger.error("Could not report the error to " + hostAddress);
+			System.exit(1);
 		}
+	}
+
+	private <T> T receiveManifest(Frame frame, ManifestReader<T> reader) throws Exception {
+		Manifest manifest = ManifestUtils.readManifest(new DataInputStream(new ByteArrayInputStream(frame.getPayload())));
 
+		return resolveManifest(manifest, reader, missing -> {
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+			ManifestUtils.writeHashes(new DataOutputStream(request), missing);
+
+			BlockingQueue<Frame> reply = hostConnection.expectReply(frame.getRequestId());
+			hostConnection.send(MessageType.BLOB_REQUEST, frame.getRequestId(), request.toByteArray());
+
+			return new DataInputStream(new ByteArrayInputStream(reply.take().getPayload()));
+		});
+	}
+
+	/* Writes a result on the current data connection, which the host reads until it is closed */
+	private void writeResult(Object result) throws IOException {
+		BufferedOutputStream output = new BufferedOutputStream(hostByteSocket.getOutputStream());
+		output.write(encode(result));
+		output.flush();
+	}
+
+	/**
+	 * Encodes a validation result or a list of candidates with the codec
+	 * chosen by the "resultcodec" option.
+	 */
+	@SuppressWarnings("unchecked")
+	private static byte[] encode(Object result) throws IOException {
+		long start = System.nanoTime();
+		byte[] encoded;
+
+		if(!ConfigurationProperties.getProperty("resultcodec").equals("compact"))
+			encoded = serialize(result);
+		else if(result instanceof TestCasesProgramValidationResult)
+			encoded = ResultCodec.encode((TestCasesProgramValidationResult) result);
+		else
+			encoded = ResultCodec.encode((List<Line>) result);
+
+		logger.debug("Result encoded in " + encoded.length + " bytes, " + ((System.nanoTime() - start) / 1000) + " us");
+		return encoded;
+	}
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+		objectOutput.writeObject(object);
+		objectOutput.close();
+		return bytes.toByteArray();
+	}
+
+	private void receiveAndProcessVariant(boolean delta) throws Exception {
+		logger.info("Waiting for variant to process...");
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+
+		logger.info("Receiving variant from " 
+				+ hostAddress + " ...");
+
+		TestCasesProgramValidationResult validationResult = processVariant(receiveVariant(hostByteSocket.getInputStream(), delta));
 		
 		hostByteSocket = DataConnectionHandler.getSocket();
 		logger.info("Connected to " + hostAddress);
 		logger.info("Sending results to " 
 				+ hostAddress);
 
-		hostObjectOutput = new ObjectOutputStream(
-				new BufferedOutputStream(hostByteSocket.getOutputStream()));
-
-		hostObjectOutput.writeObject(validationResult);
-		hostObjectOutput.flush();
+		writeResult(validationResult);
 		logger.info("Results sent to " + hostAddress);
 	}
 
+	/**
+	 * Receives a zip with several variants on a data connection. For every
+	 * variant, as soon as it is rejected by the compiler or tested, its name
+	 * is sent on the command connection and its result on a data connection.
+	 */
+	private void receiveAndProcessVariants() throws Exception {
+		logger.info("Waiting for variants to process...");
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+
+		List<Variant> variants = ZipUtils.receiveVariants(hostByteSocket.getInputStream());
+		logger.info(variants.size() + " variants received");
+
+		VariantBatchValidator.validate(variants, (variant, result) -> {
+			hostStringOutput.println(variant.getName());
+
+			hostByteSocket = DataConnectionHandler.getSocket();
+			logger.info("Sending results of " + variant.getName() + " to " + hostAddress);
+			writeResult(result);
+		});
+	}
+
+	private Variant receiveVariant(InputStream variantStream, boolean delta) throws Exception {
+		Variant variant;
+
+		if(delta)
+			variant = DeltaUtils.receiveDelta(variantStream);
+		else
+			variant = ZipUtils.getInstance().receiveVariant(variantStream);
+
+		logger.info("Variant "+variant.getName()+" received!");
+		return variant;
+	}
+
+	private TestCasesProgramValidationResult processVariant(Variant variant) throws Exception {
+		return ValidationCache.getInstance().validate(variant, () -> {
+			logger.info("Processing " + variant.getName() + " ...");
+			AndroidProject.getInstance().applyVariant(variant);
+
+			if(VariantCompiler.getInstance().compile(variant, new File(ConfigurationProperties.getProperty("variantbin"))))
+				return ProgramValidator.validateCompiled(variant);
+
+			return ProgramValidator.compilationFailure(variant);
+		});
+	}
+
 	public void receiveProjectName() throws Exception {
-		String projectName = hostStringInput.readLine();
+		setProjectName(hostStringInput.readLine());
+	}
+
+	private void setProjectName(String projectName) {
 		ConfigurationProperties.properties.setProperty("projectname", projectName);
 		logger.info("Project name: " + projectName);
 	}
@@ -246,17 +579,93 @@ public class AstorWorker  {
 
 		logger.info("Receiving project from " + hostAddress + " ...");
 
+		processProject(hostByteSocket.getInputStream());
+	}
+
+	private void processProject(InputStream projectStream) throws Exception {
 		File projectFile = ZipUtils.getInstance().receiveInitialProject(ConfigurationProperties.getProperty("projectname"), 
-				hostByteSocket.getInputStream());
+				projectStream);
 
 		logger.info("File " + projectFile.getName() + " received!");
 
 		AndroidProject.getInstance().setup(projectFile);
 	}
 
+	public void receiveProjectManifest() throws Exception {
+		logger.info("Waiting for connection...");
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+
+		logger.info("Receiving project manifest from " + hostAddress + " ...");
+
+		File projectFile = receiveManifest(hostByteSocket, this::materializeProject);
+		logger.info("Project " + projectFile.getName() + " received!");
+
+		AndroidProject.getInstance().setup(projectFile);
+	}
+
+	private void receiveAndProcessVariantManifest() throws Exception {
+		logger.info("Waiting for variant manifest to process...");
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+
+		TestCasesProgramValidationResult validationResult = processVariant(receiveManifest(hostByteSocket, ManifestUtils::toVariant));
+		
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+		logger.info("Sending results to " 
+				+ hostAddress);
+
+		writeResult(validationResult);
+		logger.info("Results sent to " + hostAddress);
+	}
+
+	/* The manifest, the list of missing blobs and the blobs all travel over the same data connection */
+	private <T> T receiveManifest(Socket socket, ManifestReader<T> reader) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		return resolveManifest(ManifestUtils.readManifest(in), reader, missing -> {
+			ManifestUtils.writeHashes(out, missing);
+			return in;
+		});
+	}
+
+	/* Fetches the missing blobs and reads the manifest while its blobs are pinned in the store */
+	private <T> T resolveManifest(Manifest manifest, ManifestReader<T> reader, BlobRequester requester) throws Exception {
+		BlobStore.getInstance().pin(manifest.getFiles().values());
+		try {
+			List<String> missing = BlobStore.getInstance().findMissing(manifest.getFiles().values());
+			logger.info(manifest + ", requesting " + missing.size() + " missing blobs");
+
+			DataInputStream blobs = requester.request(missing);
+			ManifestUtils.readBlobs(blobs, missing);
+
+			return reader.read(manifest);
+		} finally {
+			BlobStore.getInstance().unpin(manifest.getFiles().values());
+		}
+	}
+
+	private File materializeProject(Manifest manifest) throws Exception {
+		File directory = new File("workDir/AstorWorker-" + ConfigurationProperties.getProperty("projectname") + "/" + manifest.getRootName());
+		FileUtils.deleteQuietly(directory);
+		return ManifestUtils.materialize(manifest, directory);
+	}
+
+	private interface BlobRequester {
+		DataInputStream request(List<String> missing) throws Exception;
+	}
+
+	private interface ManifestReader<T> {
+		T read(Manifest manifest) throws Exception;
+	}
+
 	public void receiveFailingTest() throws Exception {
-		String action = hostStringInput.readLine();
+		setFailingTest(hostStringInput.readLine());
+	}
 
+	private void setFailingTest(String action) throws Exception {
 		String[] tokens = action.split("@");
 
 		if(TestType.valueOf(tokens[0]).equals(TestType.INSTRUMENTATION)){
@@ -274,6 +683,78 @@ public class AstorWorker  {
 		logger.info("Waiting for the name of a test case to process");
 		String action = hostStringInput.readLine();
 
+		List<Line> candidates = searchSuspicious(action);
+
+		hostByteSocket = DataConnectionHandler.getSocket();
+		logger.info("Connected to " + hostAddress);
+		logger.info("Sending candidates to " + hostByteSocket.getRemoteSocketAddress());
+
+		writeResult(candidates);
+		logger.info("Candidates sent to " + hostByteSocket.getRemoteSocketAddress());
+	}
+
+	/**
+	 * Receives a line with the number of tests followed by one line per
+	 * test, in the same format as FAULT_LOCALIZATION. For every test, as
+	 * soon as it is processed, its name is sent on the command connection
+	 * and its candidates on a data connection.
+	 */
+	public void startBatchFaultLocalization() throws Exception {
+		int size = Integer.parseInt(hostStringInput.readLine().trim());
+		List<String> actions = new ArrayList<String>(size);
+
+		for(int i = 0; i < size; i++)
+			actions.add(hostStringInput.readLine());
+
+		logger.info(size + " tests received");
+
+		searchSuspicious(actions, (test, candidates) -> {
+			hostStringOutput.println(test);
+
+			hostByteSocket = DataConnectionHandler.getSocket();
+			logger.info("Sending candidates of " + test + " to " + hostByteSocket.getRemoteSocketAddress());
+			writeResult(candidates);
+		});
+
+		logger.info("Batch of " + size + " tests processed");
+	}
+
+	private List<Line> searchSuspicious(String action) throws Exception {
+		initializeFaultLocalization();
+
+		String[] params = action.split(":");
+		logger.info("Test received: " + params[1]);
+
+		return Watchdog.run(Phase.FAULT_LOCALIZATION, () -> AndroidFaultLocalization.searchSuspicious(params[1], 
+				TestType.valueOf(params[0]), Boolean.parseBoolean(params[2])));
+	}
+
+	/* Groups the tests by type, each group is processed in a single batch */
+	private void searchSuspicious(List<String> actions, CandidatesListener listener) throws Exception {
+		initializeFaultLocalization();
+
+		Map<TestType, Map<String, Boolean>> batches = new LinkedHashMap<TestType, Map<String, Boolean>>();
+		for(String action : actions) {
+			if(action.trim().isEmpty())
+				continue;
+
+			String[] params = action.split(":");
+			TestType type = TestType.valueOf(params[0]);
+
+			if(!batches.containsKey(type))
+				batches.put(type, new LinkedHashMap<String, Boolean>());
+			batches.get(type).put(params[1], Boolean.parseBoolean(params[2]));
+		}
+
+		for(TestType type : batches.keySet()) {
+			Watchdog.run(Phase.FAULT_LOCALIZATION, () -> {
+				AndroidFaultLocalization.searchSuspicious(batches.get(type), type, listener);
+				return null;
+			});
+		}
+	}
+
+	private void initializeFaultLocalization() throws Exception {
 		if(!faultLocalizationInitialized){
 			logger.info("Setting up fault localization");
 			AndroidProject.getInstance().saveBuildGradle();
@@ -281,23 +762,17 @@ public class AstorWorker  {
 			logger.info("Fault localization initialized");
 			faultLocalizationInitialized = true;
 		}
+	}
 
-		String[] params = action.split(":");
-		logger.info("Test received: " + params[1]);
-
-		List<Line> candidates = AndroidFaultLocalization.searchSuspicious(params[1], 
-				TestType.valueOf(params[0]), new Boolean(params[2]));
+	private void sendRanking() throws Exception {
+		List<Line> ranking = AndroidFaultLocalization.rankSuspicious();
 
 		hostByteSocket = DataConnectionHandler.getSocket();
 		logger.info("Connected to " + hostAddress);
-		logger.info("Sending candidates to " + hostByteSocket.getRemoteSocketAddress());
-
-		hostObjectOutput = new ObjectOutputStream(
-				new BufferedOutputStream(hostByteSocket.getOutputStream()));
+		logger.info("Sending ranked candidates to " + hostByteSocket.getRemoteSocketAddress());
 
-		hostObjectOutput.writeObject(candidates);
-		hostObjectOutput.flush();
-		logger.info("Candidates sent to " + hostByteSocket.getRemoteSocketAddress());
+		writeResult(ranking);
+		logger.info("Ranked candidates sent to " + hostByteSocket.getRemoteSocketAddress());
 	}
 
 	public void finishFaultLocalization() throws Exception {
@@ -340,6 +815,61 @@ public class AstorWorker  {
 		if(cmd.hasOption("androidsdk"))
 			ConfigurationProperties.properties.setProperty("androidsdk", cmd.getOptionValue("androidsdk"));
 
+		ConfigurationProperties.properties.setProperty("protocol", cmd.getOptionValue("protocol", "line"));
+
+		ConfigurationProperties.properties.setProperty("compilethreads", 
+				cmd.getOptionValue("compilethreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+		ConfigurationProperties.properties.setProperty("slots", cmd.getOptionValue("slots", "1"));
+
+		if(cmd.hasOption("devices"))
+			ConfigurationProperties.properties.setProperty("devices", cmd.getOptionValue("devices"));
+
+		ConfigurationProperties.properties.setProperty("shard", Boolean.toString(cmd.hasOption("shard")));
+		ConfigurationProperties.properties.setProperty("failfast", Boolean.toString(cmd.hasOption("failfast")));
+		ConfigurationProperties.properties.setProperty("commandtimeout", cmd.getOptionValue("commandtimeout", "0"));
+		ConfigurationProperties.properties.setProperty("compiletimeout", cmd.getOptionValue("compiletimeout", "1800"));
+		ConfigurationProperties.properties.setProperty("failingtimeout", cmd.getOptionValue("failingtimeout", "600"));
+		ConfigurationProperties.properties.setProperty("regressiontimeout", cmd.getOptionValue("regressiontimeout", "3600"));
+		ConfigurationProperties.properties.setProperty("fltimeout", cmd.getOptionValue("fltimeout", "0"));
+		ConfigurationProperties.properties.setProperty("baseline", cmd.getOptionValue("baseline", "0"));
+		ConfigurationProperties.properties.setProperty("timeoutfactor", cmd.getOptionValue("timeoutfactor", "3"));
+		ConfigurationProperties.properties.setProperty("timeoutmargin", cmd.getOptionValue("timeoutmargin", "30"));
+
+		ConfigurationProperties.properties.setProperty("regressionselection", cmd.getOptionValue("regressionselection", "off"));
+		ConfigurationProperties.properties.setProperty("prioritize", Boolean.toString(cmd.hasOption("prioritize")));
+		ConfigurationProperties.properties.setProperty("singlepass", Boolean.toString(cmd.hasOption("singlepass")));
+
+		ConfigurationProperties.properties.setProperty("buildsession", Boolean.toString(cmd.hasOption("buildsession")));
+		ConfigurationProperties.properties.setProperty("buildsessionbuilds", cmd.getOptionValue("buildsessionbuilds", "100"));
+
+		ConfigurationProperties.properties.setProperty("unitrunner", cmd.getOptionValue("unitrunner", "gradle"));
+
+		if(cmd.hasOption("singlepass") && !ConfigurationProperties.getProperty("unitrunner").equals("jvm"))
+			logger.warn("singlepass only applies with unitrunner jvm, variants will run their failing tests and the regression apart");
+
+		if(cmd.hasOption("prioritize") && !ConfigurationProperties.getProperty("unitrunner").equals("jvm"))
+			logger.warn("prioritize only orders unit tests with unitrunner jvm, Gradle runs them in its own order");
+
+		ConfigurationProperties.properties.setProperty("validationcache", cmd.getOptionValue("validationcache", "0"));
+		ConfigurationProperties.properties.setProperty("validationcachedisk", Boolean.toString(cmd.hasOption("validationcachedisk")));
+
+		ConfigurationProperties.properties.setProperty("pipeline", Boolean.toString(cmd.hasOption("pipeline")));
+
+		ConfigurationProperties.properties.setProperty("resultcodec", cmd.getOptionValue("resultcodec", "java"));
+
+		if(cmd.hasOption("flformula"))
+			ConfigurationProperties.properties.setProperty("flformula", cmd.getOptionValue("flformula"));
+
+		ConfigurationProperties.properties.setProperty("fltopk", cmd.getOptionValue("fltopk", "100"));
+
+		ConfigurationProperties.properties.setProperty("flcoverage", cmd.getOptionValue("flcoverage", "report"));
+
+		ConfigurationProperties.properties.setProperty("flparsing", cmd.getOptionValue("flparsing", "inline"));
+
+		if(cmd.hasOption("blobstorecap"))
+			ConfigurationProperties.properties.setProperty("blobstorecap", cmd.getOptionValue("blobstorecap"));
+
 		return true;
 	}
 
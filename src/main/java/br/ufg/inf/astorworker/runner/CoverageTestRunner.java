@@ -0,0 +1,93 @@
+package br.ufg.inf.astorworker.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+
+/**
+ * Runs a list of unit tests in a JVM started with the JaCoCo agent and
+ * dumps the coverage of every test to its own execution data file. The
+ * agent is reset before each test, so each file only holds the probes hit
+ * by that test. For every test a line is printed as soon as its file is
+ * written:
+ *
+ * <pre>
+ * COVERAGE &lt;tab&gt; test &lt;tab&gt; PASSED|FAILED|NOT_FOUND &lt;tab&gt; execution data file
+ * </pre>
+ *
+ * This class runs in the test JVM, so it must only depend on JUnit.
+ *
+ * Usage: CoverageTestRunner outputDirectory test...
+ */
+public class CoverageTestRunner {
+	public static final String PREFIX = "COVERAGE\t";
+
+	public static void main(String[] args) throws Exception {
+		File outputDirectory = new File(args[0]);
+		outputDirectory.mkdirs();
+
+		// Tests may write to stdout too, the protocol lines go to the original stream
+		PrintStream protocol = System.out;
+		System.setOut(System.err);
+
+		Class<?> agentInterface = Class.forName("org.jacoco.agent.rt.IAgent");
+		Object agent = Class.forName("org.jacoco.agent.rt.RT").getMethod("getAgent").invoke(null);
+		Method reset = agentInterface.getMethod("reset");
+		Method executionData = agentInterface.getMethod("getExecutionData", boolean.class);
+
+		for(int i = 1; i < args.length; i++) {
+			String test = args[i];
+			Request request = createRequest(test);
+
+			if(request == null) {
+				protocol.println(PREFIX + test + "\tNOT_FOUND\t-");
+				continue;
+			}
+
+			reset.invoke(agent);
+			Result result = new JUnitCore().run(request);
+			byte[] data = (byte[]) executionData.invoke(agent, false);
+
+			File dump = new File(outputDirectory, i + ".exec");
+			write(dump, data);
+
+			String status = result.getRunCount() == 0 ? "NOT_FOUND" : result.wasSuccessful() ? "PASSED" : "FAILED";
+			protocol.println(PREFIX + test + "\t" + status + "\t" + dump.getAbsolutePath());
+			protocol.flush();
+		}
+
+		// Keeps non-daemon threads started by the tests from holding the JVM
+		System.exit(0);
+	}
+
+	private static Request createRequest(String test) {
+		String[] tokens = test.split("#");
+
+		try {
+			Class<?> testClass = Class.forName(tokens[0], false, CoverageTestRunner.class.getClassLoader());
+
+			if(tokens.length > 1)
+				return Request.method(testClass, tokens[1]);
+
+			return Request.aClass(testClass);
+		} catch(ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
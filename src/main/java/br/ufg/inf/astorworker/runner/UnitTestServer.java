@@ -0,0 +1,292 @@
+package br.ufg.inf.astorworker.runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.runner.Description;
+import org.junit.runner.Request;
+import org.junit.runner.RunWith;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+
+/**
+ * Runs unit tests on request in a long-lived JVM, so the JVM and the
+ * libraries of the project are already loaded when a variant arrives.
+ * Every request is one line read from the standard input:
+ *
+ * <pre>
+ * ALL|FAIL_FAST &lt;tab&gt; classpath &lt;tab&gt; test classes directory &lt;tab&gt; test...
+ * </pre>
+ *
+ * The classpath holds the classes of the variant, its tests and the other
+ * classes of the project. They are loaded by a new class loader for every
+ * request, while the libraries stay in the classpath of this JVM. A test
+ * is "Class#method", a class name, or "*" for every test class in the
+ * test classes directory. A test the request already ran is never run
+ * again, so tests listed before "*" run first. With FAIL_FAST no test runs
+ * after the first one that fails; with "!" among the tests, none of the
+ * tests after it run if one of the tests before it failed. For every test method a line is printed, and one more
+ * closes the request:
+ *
+ * <pre>
+ * RESULT &lt;tab&gt; class#method &lt;tab&gt; PASSED|FAILED
+ * DONE
+ * </pre>
+ *
+ * This class runs in the test JVM, so it must only depend on JUnit.
+ */
+public class UnitTestServer {
+	public static final String RESULT = "RESULT\t";
+	public static final String DONE = "DONE";
+	public static final String ALL = "ALL";
+	public static final String FAIL_FAST = "FAIL_FAST";
+	public static final String GATE = "!";
+
+	public static void main(String[] args) throws Exception {
+		// Tests may write to stdout too, the protocol lines go to the original stream
+		PrintStream protocol = System.out;
+		System.setOut(System.err);
+
+		BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		String request;
+
+		while((request = requests.readLine()) != null) {
+			String[] fields = request.split("\t");
+			boolean failFast = fields[0].equals(FAIL_FAST);
+			VariantClassLoader loader = new VariantClassLoader(toURLs(fields[1]), UnitTestServer.class.getClassLoader());
+			ClassLoader previous = Thread.currentThread().getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(loader);
+
+			try {
+				boolean failed = false;
+				Set<String> ran = new HashSet<String>();
+
+				for(int i = 3; i < fields.length && !(failFast && failed); i++) {
+					if(fields[i].equals(GATE)) {
+						if(failed)
+							break;
+					}
+					else if(fields[i].equals("*")) {
+						for(Class<?> testClass : findTestClasses(new File(fields[2]), loader)) {
+							Request remaining = remaining(testClass, ran);
+							if(remaining == null)
+								continue;
+
+							failed |= run(remaining, failFast, protocol, ran);
+							if(failFast && failed)
+								break;
+						}
+					}
+					else failed |= run(fields[i], loader, failFast, protocol, ran);
+				}
+			} finally {
+				Thread.currentThread().setContextClassLoader(previous);
+				loader.close();
+			}
+
+			protocol.println(DONE);
+			protocol.flush();
+		}
+
+		// Keeps non-daemon threads started by the tests from holding the JVM
+		System.exit(0);
+	}
+
+	/* Returns true if a test failed */
+	private static boolean run(String test, ClassLoader loader, boolean failFast, PrintStream protocol, Set<String> ran) {
+		String[] tokens = test.split("#");
+		Class<?> testClass;
+
+		if(ran.contains(test))
+			return false;
+
+		try {
+			testClass = Class.forName(tokens[0], false, loader);
+		} catch(ClassNotFoundException | LinkageError e) {
+			protocol.println(RESULT + test + "\tFAILED");
+			return true;
+		}
+
+		Request request = tokens.length > 1 ? Request.method(testClass, tokens[1]) : remaining(testClass, ran);
+		return request != null && run(request, failFast, protocol, ran);
+	}
+
+	/* The tests of the class that did not run yet, or null if they all did */
+	private static Request remaining(Class<?> testClass, Set<String> ran) {
+		Request request = Request.aClass(testClass);
+		if(ran.isEmpty())
+			return request;
+
+		Filter notRun = new Filter() {
+			@Override
+			public boolean shouldRun(Description description) {
+				return !description.isTest() || !ran.contains(description.getClassName() + "#" + description.getMethodName());
+			}
+
+			@Override
+			public String describe() {
+				return "tests not run yet";
+			}
+		};
+
+		// A request with every test filtered out would fail
+		return hasTest(request.getRunner().getDescription(), notRun) ? request.filterWith(notRun) : null;
+	}
+
+	private static boolean hasTest(Description description, Filter filter) {
+		if(description.isTest())
+			return filter.shouldRun(description);
+
+		for(Description child : description.getChildren()) {
+			if(hasTest(child, filter))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static boolean run(Request request, boolean failFast, PrintStream protocol, Set<String> ran) {
+		RunNotifier notifier = new RunNotifier();
+		Set<Description> failed = new HashSet<Description>();
+
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testFailure(Failure failure) {
+				failed.add(failure.getDescription());
+
+				// Failures of the class itself, e.g. in @BeforeClass, have no test to finish
+				if(failure.getDescription().getMethodName() == null)
+					protocol.println(RESULT + failure.getDescription().getClassName() + "\tFAILED");
+			}
+
+			@Override
+			public void testFinished(Description description) {
+				String status = failed.contains(description) ? "FAILED" : "PASSED";
+				ran.add(description.getClassName() + "#" + description.getMethodName());
+				protocol.println(RESULT + description.getClassName() + "#" + description.getMethodName() + "\t" + status);
+
+				// Stops the run before its next test starts
+				if(failFast && !failed.isEmpty())
+					notifier.pleaseStop();
+			}
+		});
+
+		try {
+			request.getRunner().run(notifier);
+		} catch(StoppedByUserException e) {
+			// Stopped at its first failure
+		}
+
+		return !failed.isEmpty();
+	}
+
+	/* The test classes Gradle would run: concrete classes with JUnit tests */
+	private static List<Class<?>> findTestClasses(File directory, ClassLoader loader) {
+		List<String> names = new ArrayList<String>();
+		listClasses(directory, "", names);
+
+		List<Class<?>> testClasses = new ArrayList<Class<?>>();
+		for(String name : names) {
+			try {
+				Class<?> candidate = Class.forName(name, false, loader);
+				if(isTestClass(candidate))
+					testClasses.add(candidate);
+			} catch(ClassNotFoundException | LinkageError e) {
+				// Not loadable, so Gradle could not run it either
+			}
+		}
+
+		return testClasses;
+	}
+
+	private static void listClasses(File directory, String packageName, List<String> names) {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+
+		for(File file : files) {
+			if(file.isDirectory())
+				listClasses(file, packageName + file.getName() + ".", names);
+			else if(file.getName().endsWith(".class") && !file.getName().contains("$"))
+				names.add(packageName + file.getName().substring(0, file.getName().length() - ".class".length()));
+		}
+	}
+
+	private static boolean isTestClass(Class<?> candidate) {
+		if(Modifier.isAbstract(candidate.getModifiers()) || !Modifier.isPublic(candidate.getModifiers()))
+			return false;
+
+		if(candidate.isAnnotationPresent(RunWith.class) || junit.framework.TestCase.class.isAssignableFrom(candidate))
+			return true;
+
+		for(Method method : candidate.getMethods()) {
+			if(method.isAnnotationPresent(org.junit.Test.class))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static URL[] toURLs(String classpath) throws Exception {
+		List<URL> urls = new ArrayList<URL>();
+
+		for(String entry : classpath.split(File.pathSeparator)) {
+			if(!entry.isEmpty())
+				urls.add(new File(entry).toURI().toURL());
+		}
+
+		return urls.toArray(new URL[urls.size()]);
+	}
+
+	/**
+	 * Loads the classes of its classpath before asking the parent, so the
+	 * classes of the variant win over any copy of them in the libraries.
+	 * JUnit always comes from the parent, as it is shared with the runner.
+	 */
+	private static class VariantClassLoader extends URLClassLoader {
+		private VariantClassLoader(URL[] urls, ClassLoader parent) {
+			super(urls, parent);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			synchronized(getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+
+				if(loaded == null && !isShared(name)) {
+					try {
+						loaded = findClass(name);
+					} catch(ClassNotFoundException e) {
+						// Not part of the variant
+					}
+				}
+
+				if(loaded == null)
+					return super.loadClass(name, resolve);
+
+				if(resolve)
+					resolveClass(loaded);
+
+				return loaded;
+			}
+		}
+
+		private static boolean isShared(String name) {
+			return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("org.junit.") 
+					|| name.startsWith("junit.") || name.startsWith("org.hamcrest.");
+		}
+	}
+}
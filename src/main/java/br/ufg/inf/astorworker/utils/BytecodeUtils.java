@@ -0,0 +1,38 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+public class BytecodeUtils {
+
+    /**
+     * Rewrites the class without source file names, line numbers and local
+     * variable tables, so classes that only differ in those are equal.
+     */
+    public static byte[] stripDebug(byte[] classFile) {
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classFile).accept(writer, ClassReader.SKIP_DEBUG);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Hashes the classes, by name and without debug attributes, in name
+     * order.
+     */
+    public static String sha256(Map<String, byte[]> classes) {
+        MessageDigest digest = HashUtils.newSha256();
+
+        for (String className : new TreeSet<String>(classes.keySet())) {
+            digest.update(className.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(stripDebug(classes.get(className)));
+        }
+
+        return HashUtils.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,78 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Clones a project directory cheaply. Files are hard-linked to the
+ * original where possible, except the ones that are rewritten in place:
+ * build scripts and properties files, which the worker edits, and
+ * everything under "build" and ".gradle" directories, which Gradle
+ * writes. Those are copied so each clone has its own. Sources may be
+ * linked because SourceTree replaces files instead of writing into them.
+ */
+public class CloneUtils {
+
+    /**
+     * Returns the number of files that had to be copied instead of linked.
+     */
+    public static int cloneProject(File source, File target) throws IOException {
+        FileUtils.deleteDirectory(target);
+        Path root = source.toPath();
+        Path targetRoot = target.toPath();
+        int[] copied = { 0 };
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                Files.createDirectories(targetRoot.resolve(root.relativize(directory)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Path clone = targetRoot.resolve(root.relativize(file));
+
+                if (mustCopy(root.relativize(file)) || !link(clone, file)) {
+                    Files.copy(file, clone, StandardCopyOption.COPY_ATTRIBUTES);
+                    copied[0]++;
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return copied[0];
+    }
+
+    private static boolean mustCopy(Path relative) {
+        String name = relative.getFileName().toString();
+        if (name.endsWith(".gradle") || name.endsWith(".properties"))
+            return true;
+
+        for (Path segment : relative) {
+            if (segment.toString().equals("build") || segment.toString().equals(".gradle"))
+                return true;
+        }
+
+        return false;
+    }
+
+    /* Links are not available on every file system, the caller copies then */
+    private static boolean link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.handlers.FramedConnectionHandler;
+
+/**
+ * Receives variants as a delta against the pristine source snapshot kept
+ * in "defaultsrc". The stream has the following layout:
+ *
+ * <pre>
+ * UTF   variant name
+ * int   number of entries
+ * entry:
+ *   byte  operation: 'A' added, 'M' modified, 'D' deleted, 'P' unified diff against the pristine file
+ *   UTF   path relative to the source root, using '/' as separator
+ *   A/M/P: int length followed by the file contents or the diff
+ *   A/M/P: SHA-256 of the resulting file (32 bytes)
+ * </pre>
+ */
+public class DeltaUtils {
+    private static final int BUFFER = 64 * 1024;
+
+    public static Variant receiveDelta(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, BUFFER));
+        File pristine = new File(ConfigurationProperties.getProperty("defaultsrc"));
+
+        String variantName = in.readUTF();
+        int entries = in.readInt();
+
+        Variant variant = new Variant(variantName, false);
+
+        for (int i = 0; i < entries; i++) {
+            char operation = (char) in.readByte();
+            String path = normalize(in.readUTF());
+
+            if (operation == 'D') {
+                variant.deleteFile(path);
+                continue;
+            }
+
+            byte[] data = new byte[readLength(in)];
+            in.readFully(data);
+            byte[] checksum = new byte[HashUtils.SHA256_LENGTH];
+            in.readFully(checksum);
+
+            byte[] contents;
+            switch (operation) {
+                case 'A':
+                case 'M':
+                    contents = data;
+                    break;
+
+                case 'P':
+                    String original = new String(Files.readAllBytes(new File(pristine, path).toPath()), StandardCharsets.UTF_8);
+                    contents = DiffUtils.applyUnifiedDiff(original, new String(data, StandardCharsets.UTF_8))
+                            .getBytes(StandardCharsets.UTF_8);
+                    break;
+
+                default:
+                    throw new IOException("Unknown delta operation '" + operation + "' for " + path);
+            }
+
+            if (!Arrays.equals(checksum, HashUtils.sha256(contents)))
+                throw new IOException("Checksum mismatch for " + path + " of " + variantName);
+
+            variant.addFile(path, contents);
+        }
+
+        return variant;
+    }
+
+    /**
+     * Reads the length of the contents that follow, rejecting negative
+     * lengths and lengths larger than a frame before anything is allocated.
+     */
+    public static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0 || length > FramedConnectionHandler.MAX_FRAME_SIZE)
+            throw new IOException("Invalid content length: " + length);
+
+        return length;
+    }
+
+    /**
+     * Normalizes a path sent by the host. Absolute paths and paths that
+     * leave the root, such as "a/../../b", are rejected, since the files
+     * are read from the pristine sources and written into the project.
+     */
+    public static String normalize(String path) throws IOException {
+        String slashed = path.replace('\\', '/');
+
+        if (slashed.startsWith("/") || slashed.matches("[A-Za-z]:.*"))
+            throw new IOException("Absolute path: " + path);
+
+        Path normalized = Paths.get(slashed).normalize();
+
+        if (normalized.isAbsolute() || normalized.toString().isEmpty() || normalized.startsWith(".."))
+            throw new IOException("Path outside the source root: " + path);
+
+        return normalized.toString().replace(File.separatorChar, '/');
+    }
+}
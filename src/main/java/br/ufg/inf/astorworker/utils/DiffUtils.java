@@ -0,0 +1,167 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DiffUtils {
+    private static final Pattern HUNK_HEADER = Pattern.compile("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+    private static final String NO_NEWLINE = "\\ No newline at end of file";
+
+    /**
+     * Applies a unified diff to the given text. Context and removed lines
+     * must match exactly, the host always diffs against the same pristine
+     * file the worker holds.
+     */
+    public static String applyUnifiedDiff(String original, String diff) throws IOException {
+        List<String> source = splitLines(original);
+        boolean endsWithNewline = original.isEmpty() || original.endsWith("\n");
+        boolean lastLineFromDiff = false;
+        boolean lastLineUnterminated = false;
+        List<String> result = new ArrayList<String>();
+        String[] diffLines = diff.split("\n", -1);
+        int sourceIndex = 0;
+        int i = 0;
+
+        // Skipping the file headers
+        while (i < diffLines.length && !diffLines[i].startsWith("@@"))
+            i++;
+
+        while (i < diffLines.length) {
+            String header = diffLines[i++];
+
+            if (header.isEmpty())
+                continue;
+
+            Matcher m = HUNK_HEADER.matcher(header);
+            if (!m.matches())
+                throw new IOException("Malformed hunk header: " + header);
+
+            int start = Integer.parseInt(m.group(1));
+            int oldLength = m.group(2) == null ? 1 : Integer.parseInt(m.group(2));
+            // A hunk that only adds lines refers to the line before the insertion point
+            int hunkStart = (oldLength == 0) ? start : start - 1;
+
+            if (hunkStart < sourceIndex || hunkStart > source.size())
+                throw new IOException("Hunk out of range: " + header);
+
+            while (sourceIndex < hunkStart) {
+                result.add(source.get(sourceIndex++));
+                lastLineFromDiff = false;
+            }
+
+            char last = 0;
+            while (i < diffLines.length && !diffLines[i].startsWith("@@")) {
+                String line = diffLines[i++];
+
+                if (line.equals(NO_NEWLINE)) {
+                    if (last == '+' || last == ' ')
+                        lastLineUnterminated = true;
+                    continue;
+                }
+
+                if (line.isEmpty()) {
+                    // Trailing separator of the diff itself
+                    if (i == diffLines.length)
+                        break;
+                    line = " ";
+                }
+
+                char op = line.charAt(0);
+                String content = line.substring(1);
+
+                switch (op) {
+                    case ' ':
+                    case '-':
+                        if (sourceIndex >= source.size() || !source.get(sourceIndex).equals(content))
+                            throw new IOException("Patch does not apply at line " + (sourceIndex + 1));
+                        if (op == ' ') {
+                            result.add(content);
+                            lastLineFromDiff = true;
+                            lastLineUnterminated = false;
+                        }
+                        sourceIndex++;
+                        break;
+
+                    case '+':
+                        result.add(content);
+                        lastLineFromDiff = true;
+                        lastLineUnterminated = false;
+                        break;
+
+                    default:
+                        throw new IOException("Malformed patch line: " + line);
+                }
+
+                last = op;
+            }
+        }
+
+        if (sourceIndex < source.size()) {
+            while (sourceIndex < source.size())
+                result.add(source.get(sourceIndex++));
+        }
+        else if (lastLineFromDiff)
+            endsWithNewline = !lastLineUnterminated;
+
+        String patched = String.join("\n", result);
+        if (!result.isEmpty() && endsWithNewline)
+            patched += "\n";
+
+        return patched;
+    }
+
+    /**
+     * The lines of the original text, numbered from 1, that the changed
+     * text replaces, found by trimming the lines both texts start and end
+     * with. Lines only inserted give the original lines around them. Texts
+     * changed in several places give every line from the first change to
+     * the last one.
+     */
+    public static List<Integer> changedLines(String original, String changed) {
+        List<String> before = splitLines(original);
+        List<String> after = splitLines(changed);
+        int prefix = 0;
+        int suffix = 0;
+
+        while (prefix < before.size() && prefix < after.size() && before.get(prefix).equals(after.get(prefix)))
+            prefix++;
+
+        while (suffix < before.size() - prefix && suffix < after.size() - prefix
+                && before.get(before.size() - 1 - suffix).equals(after.get(after.size() - 1 - suffix)))
+            suffix++;
+
+        List<Integer> lines = new ArrayList<Integer>();
+        int first = prefix + 1;
+        int last = before.size() - suffix;
+
+        if (first <= last) {
+            for (int line = first; line <= last; line++)
+                lines.add(line);
+        }
+        else {
+            if (prefix > 0)
+                lines.add(prefix);
+            if (prefix < before.size())
+                lines.add(prefix + 1);
+        }
+
+        return lines;
+    }
+
+    public static List<String> splitLines(String text) {
+        if (text.isEmpty())
+            return new ArrayList<String>();
+
+        List<String> lines = new ArrayList<String>(Arrays.asList(text.split("\n", -1)));
+
+        // The last element is empty when the text ends with a line break
+        if (lines.get(lines.size() - 1).isEmpty())
+            lines.remove(lines.size() - 1);
+
+        return lines;
+    }
+}
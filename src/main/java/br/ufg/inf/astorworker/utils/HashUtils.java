@@ -0,0 +1,74 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class HashUtils {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    public static final int SHA256_LENGTH = 32;
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static byte[] sha256(byte[] data) {
+        return newSha256().digest(data);
+    }
+
+    /**
+     * Hashes the relative path, size and contents of every file under the
+     * directory, in path order, so equal trees always give the same hash.
+     */
+    public static String sha256(File directory) throws IOException {
+        MessageDigest digest = newSha256();
+        Path root = directory.toPath();
+        List<Path> files;
+
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        for (Path file : files) {
+            byte[] contents = Files.readAllBytes(file);
+            digest.update(root.relativize(file).toString().replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Integer.toString(contents.length).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(contents);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] hash) {
+        char[] out = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            out[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+
+        return new String(out);
+    }
+
+    public static byte[] fromHex(String hash) {
+        byte[] out = new byte[hash.length() / 2];
+
+        for (int i = 0; i < out.length; i++)
+            out[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+
+        return out;
+    }
+}
@@ -0,0 +1,74 @@
+package br.ufg.inf.astorworker.utils;
+
+public class JavaSourceUtils {
+
+    /**
+     * Strips comments and formatting from Java source, so variants that only
+     * differ in them normalize to the same text. String and character
+     * literals are kept as they are, and whitespace only survives as a
+     * single space between two tokens that would otherwise merge.
+     */
+    public static String normalize(String source) {
+        StringBuilder normalized = new StringBuilder(source.length());
+        boolean pendingSpace = false;
+        int i = 0;
+
+        while (i < source.length()) {
+            char c = source.charAt(i);
+
+            if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '/') {
+                while (i < source.length() && source.charAt(i) != '\n')
+                    i++;
+                pendingSpace = true;
+            }
+            else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end == -1 ? source.length() : end + 2;
+                pendingSpace = true;
+            }
+            else if (Character.isWhitespace(c)) {
+                i++;
+                pendingSpace = true;
+            }
+            else {
+                if (pendingSpace && normalized.length() > 0 && mergesWith(normalized.charAt(normalized.length() - 1), c))
+                    normalized.append(' ');
+                pendingSpace = false;
+
+                if (c == '"' || c == '\'')
+                    i = copyLiteral(source, i, normalized);
+                else {
+                    normalized.append(c);
+                    i++;
+                }
+            }
+        }
+
+        return normalized.toString();
+    }
+
+    /* Copies the literal starting at the quote, escapes included, and returns where it ends */
+    private static int copyLiteral(String source, int start, StringBuilder normalized) {
+        char quote = source.charAt(start);
+        int i = start + 1;
+
+        while (i < source.length() && source.charAt(i) != quote && source.charAt(i) != '\n')
+            i += source.charAt(i) == '\\' ? 2 : 1;
+
+        int end = Math.min(i + 1, source.length());
+        normalized.append(source, start, end);
+        return end;
+    }
+
+    /* Words and numbers merge, and so do operators such as "+ +" or "- -" */
+    private static boolean mergesWith(char previous, char next) {
+        if (Character.isJavaIdentifierPart(previous) && Character.isJavaIdentifierPart(next))
+            return true;
+
+        return isOperator(previous) && isOperator(next);
+    }
+
+    private static boolean isOperator(char c) {
+        return "+-*/%=<>!&|^~?:.".indexOf(c) != -1;
+    }
+}
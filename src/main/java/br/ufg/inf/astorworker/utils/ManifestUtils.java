@@ -0,0 +1,113 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import br.ufg.inf.astorworker.cache.BlobStore;
+import br.ufg.inf.astorworker.entities.Manifest;
+import br.ufg.inf.astorworker.entities.Variant;
+
+/**
+ * Wire format of the manifest based transfers:
+ *
+ * <pre>
+ * host to worker, manifest:  UTF root name, int n, n x (UTF path, 32 byte SHA-256)
+ * worker to host, missing:   int m, m x (32 byte SHA-256)
+ * host to worker, blobs:     m x (32 byte SHA-256, int length, contents)
+ * </pre>
+ */
+public class ManifestUtils {
+
+    /**
+     * Reads a manifest sent by the host. The root name must be a single
+     * directory name and every path is normalized, so nothing it names can
+     * be written or deleted outside the project folder.
+     */
+    public static Manifest readManifest(DataInputStream in) throws IOException {
+        Manifest manifest = new Manifest(checkRootName(in.readUTF()));
+        int files = in.readInt();
+
+        for (int i = 0; i < files; i++) {
+            String path = DeltaUtils.normalize(in.readUTF());
+            manifest.addFile(path, readHash(in));
+        }
+
+        return manifest;
+    }
+
+    private static String checkRootName(String rootName) throws IOException {
+        if (rootName.isEmpty() || rootName.equals(".") || rootName.equals("..")
+                || rootName.indexOf('/') >= 0 || rootName.indexOf('\\') >= 0 || rootName.indexOf(':') >= 0)
+            throw new IOException("Invalid manifest root name: " + rootName);
+
+        return rootName;
+    }
+
+    public static void writeHashes(DataOutputStream out, List<String> hashes) throws IOException {
+        out.writeInt(hashes.size());
+
+        for (String hash : hashes)
+            out.write(HashUtils.fromHex(hash));
+
+        out.flush();
+    }
+
+    /**
+     * Reads the requested blobs into the store, checking that every one of
+     * them matches its hash and arrives once.
+     */
+    public static void readBlobs(DataInputStream in, List<String> requested) throws IOException {
+        Set<String> expected = new HashSet<String>(requested);
+
+        for (int i = 0; i < requested.size(); i++) {
+            String hash = readHash(in);
+            byte[] contents = new byte[DeltaUtils.readLength(in)];
+            in.readFully(contents);
+
+            if (!expected.remove(hash))
+                throw new IOException("Unexpected blob " + hash);
+
+            if (!Arrays.equals(HashUtils.fromHex(hash), HashUtils.sha256(contents)))
+                throw new IOException("Checksum mismatch for blob " + hash);
+
+            BlobStore.getInstance().put(contents);
+        }
+    }
+
+    /**
+     * Writes every file of the manifest under the given directory. The
+     * blobs must have been pinned in the store by the caller.
+     */
+    public static File materialize(Manifest manifest, File directory) throws IOException {
+        for (Map.Entry<String, String> file : manifest.getFiles().entrySet())
+            BlobStore.getInstance().copyTo(file.getValue(), new File(directory, file.getKey()));
+
+        return directory;
+    }
+
+    /**
+     * Builds a complete variant out of the manifest, reading every file from
+     * the blob store. The blobs must have been pinned by the caller.
+     */
+    public static Variant toVariant(Manifest manifest) throws IOException {
+        Variant variant = new Variant(manifest.getRootName(), true);
+
+        for (Map.Entry<String, String> file : manifest.getFiles().entrySet())
+            variant.addFile(file.getKey(), BlobStore.getInstance().get(file.getValue()));
+
+        return variant;
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[HashUtils.SHA256_LENGTH];
+        in.readFully(hash);
+        return HashUtils.toHex(hash);
+    }
+}
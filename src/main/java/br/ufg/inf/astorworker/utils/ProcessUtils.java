@@ -0,0 +1,132 @@
+package br.ufg.inf.astorworker.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+public class ProcessUtils {
+    private static Logger logger = Logger.getLogger(ProcessUtils.class);
+
+    /**
+     * Kills the process and every process it started, so no test JVM or
+     * tool is left running. The descendants are found with ProcessHandle
+     * on Java 9 or later and with pgrep on older JVMs, on Unix only.
+     */
+    public static void killTree(Process process) {
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Object handle = Process.class.getMethod("toHandle").invoke(process);
+            List<?> descendants = ((Stream<?>) handleClass.getMethod("descendants").invoke(handle)).collect(Collectors.toList());
+            Method destroyForcibly = handleClass.getMethod("destroyForcibly");
+
+            process.destroyForcibly();
+            for (Object descendant : descendants)
+                destroyForcibly.invoke(descendant);
+
+            return;
+        } catch (ClassNotFoundException e) {
+            // Java 8
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Could not list the processes started by " + process + ": " + e);
+        }
+
+        long pid = getPid(process);
+        List<Long> descendants = new ArrayList<Long>();
+        if (pid > 0)
+            addDescendants(pid, descendants);
+
+        process.destroyForcibly();
+        for (long descendant : descendants)
+            run("kill -9 " + descendant);
+    }
+
+    /**
+     * Kills the test JVMs Gradle started for the project. They are children
+     * of the Gradle daemon, not of the gradlew client, so killing the client
+     * leaves them running. They are told apart from the workers of other
+     * projects by their working directory, which Gradle sets to the project,
+     * so they can only be found where /proc exists, i.e. on Linux. Returns
+     * the number of JVMs killed.
+     */
+    public static int killGradleWorkers(File projectDirectory) {
+        if (!new File("/proc").isDirectory()) {
+            logger.warn("The Gradle test JVMs of " + projectDirectory + " cannot be found on this system and may keep running");
+            return 0;
+        }
+
+        Path root = projectDirectory.getAbsoluteFile().toPath().normalize();
+        int killed = 0;
+
+        for (String pid : run("pgrep -f GradleWorkerMain")) {
+            try {
+                Path workingDirectory = Files.readSymbolicLink(Paths.get("/proc", pid.trim(), "cwd"));
+
+                if (workingDirectory.startsWith(root)) {
+                    run("kill -9 " + pid.trim());
+                    killed++;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Already gone, or not ours to read
+            }
+        }
+
+        return killed;
+    }
+
+    /* UNIXProcess keeps its pid in a private field */
+    private static long getPid(Process process) {
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getLong(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static void addDescendants(long pid, List<Long> descendants) {
+        for (String child : run("pgrep -P " + pid)) {
+            try {
+                long childPid = Long.parseLong(child.trim());
+                descendants.add(childPid);
+                addDescendants(childPid, descendants);
+            } catch (NumberFormatException e) {
+                // Not a pid
+            }
+        }
+    }
+
+    private static List<String> run(String command) {
+        List<String> output = new ArrayList<String>();
+
+        try {
+            Process p = new ProcessBuilder(command.split(" ")).redirectErrorStream(true).start();
+            BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String line;
+
+            while ((line = br.readLine()) != null)
+                output.add(line);
+
+            br.close();
+            p.waitFor();
+        } catch (IOException e) {
+            logger.warn("Could not run \"" + command + "\": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return output;
+    }
+}
@@ -3,10 +3,17 @@ import java.util.zip.*;
 import java.io.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import br.ufg.inf.astorworker.cache.BlobStore;
+import br.ufg.inf.astorworker.entities.Variant;
 
 
 public class ZipUtils {
-	private static final int BUFFER = 2048;
+	private static final int BUFFER = 64 * 1024;
     private static List<String> fileList;
     private static ZipUtils instance;
 
@@ -20,34 +27,70 @@ public class ZipUtils {
         return instance;
     }
 
-public static File receiveFolder(String projectName, InputStream is) throws IOException {
-        BufferedOutputStream dest = null;
-        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is));
-        ZipEntry entry;
-        String mainFolder = null;
+    /**
+     * Reads a variant zip into memory. Entries are named
+     * ".../src/variantName/path/to/File.java", the variant is kept as an
+     * overlay of the pristine sources.
+     */
+    public static Variant receiveVariant(InputStream is) throws IOException {
+        return receiveVariants(is).get(0);
+    }
 
+    /**
+     * Reads a zip holding one or more variants, each under its own
+     * ".../src/variantName/" folder, in the order they first appear.
+     */
+    public static List<Variant> receiveVariants(InputStream is) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is, BUFFER));
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(BUFFER);
+        byte data[] = new byte[BUFFER];
+        ZipEntry entry;
+        Map<String, Variant> variants = new LinkedHashMap<String, Variant>();
 
         while((entry = zis.getNextEntry()) != null) {
+            if(entry.isDirectory())
+                continue;
 
-            String fileName = entry.getName().split(".src.")[1];
-            mainFolder = fileName.split("\\\\|/")[0];
+            String[] fileName = splitVariantEntry(entry.getName());
 
-            int count;
-            byte data[] = new byte[BUFFER];
-            
-            File temp = new File("workDir/AstorWorker-" + projectName + "/variants/" + fileName);
-            temp.getParentFile().mkdirs();
+            Variant variant = variants.get(fileName[0]);
+            if(variant == null) {
+                variant = new Variant(fileName[0], false);
+                variants.put(fileName[0], variant);
+            }
 
-            FileOutputStream fos = new FileOutputStream("workDir/AstorWorker-" + projectName + "/variants/" + fileName);
-            dest = new BufferedOutputStream(fos, BUFFER);
+            int count;
+            contents.reset();
             while ((count = zis.read(data, 0, BUFFER)) != -1) 
-                dest.write(data, 0, count);
-            
-            dest.flush();
-            dest.close();
+                contents.write(data, 0, count);
+
+            byte[] file = contents.toByteArray();
+            variant.addFile(DeltaUtils.normalize(fileName[1]), file);
         }
-        
-        return new File("workDir/AstorWorker-" + projectName + "/variants/" + mainFolder);
+
+        if(variants.isEmpty())
+            throw new IOException("Received an empty variant");
+
+        return new ArrayList<Variant>(variants.values());
+    }
+
+    /**
+     * Splits ".../src/variantName/path/to/File.java" into the variant name
+     * and the path of the file relative to the source root.
+     */
+    private static String[] splitVariantEntry(String entryName) throws IOException {
+        String name = "/" + entryName.replace('\\', '/');
+        int src = name.indexOf("/src/");
+
+        if (src < 0)
+            throw new IOException("Variant entry outside a src folder: " + entryName);
+
+        String[] fileName = name.substring(src + "/src/".length()).split("/", 2);
+
+        if (fileName.length < 2 || fileName[0].isEmpty() || fileName[1].isEmpty())
+            throw new IOException("Variant entry without a variant folder: " + entryName);
+
+        return fileName;
     }
 
     public static File receiveInitialProject(String projectName, InputStream is) throws IOException {
@@ -65,13 +108,16 @@ public static File receiveFolder(String projectName, InputStream is) throws IOEx
             File temp = new File("workDir/AstorWorker-" + projectName + "/" + fileName);
             temp.getParentFile().mkdirs();
 
-            FileOutputStream fos = new FileOutputStream("workDir/AstorWorker-" + projectName + "/" + fileName);
-            dest = new BufferedOutputStream(fos, BUFFER);
+            MessageDigest digest = HashUtils.newSha256();
+            FileOutputStream fos = new FileOutputStream(temp);
+            dest = new BufferedOutputStream(new DigestOutputStream(fos, digest), BUFFER);
             while ((count = zis.read(data, 0, BUFFER)) != -1) 
                 dest.write(data, 0, count);
             
             dest.flush();
             dest.close();
+
+            BlobStore.getInstance().putFile(HashUtils.toHex(digest.digest()), temp);
         }
 
         return new File("workDir/AstorWorker-" + projectName + "/" + projectName);
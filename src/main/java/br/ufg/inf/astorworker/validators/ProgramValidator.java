@@ -1,7 +1,9 @@
 package br.ufg.inf.astorworker.validators;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.net.MalformedURLException;
 
 import org.apache.log4j.Logger;
@@ -10,23 +12,50 @@ import org.apache.commons.io.FileUtils;
 import fr.inria.astor.core.validation.entity.TestResult;
 import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
 import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.cache.ValidationCache;
 import br.ufg.inf.astorworker.executors.InstrumentationTestExecutorProcess;
 import br.ufg.inf.astorworker.executors.JUnitTestExecutorProcess; 
+import br.ufg.inf.astorworker.executors.TestOutputMonitor;
+import br.ufg.inf.astorworker.executors.Watchdog;
 import br.ufg.inf.astorworker.entities.AndroidProject; 
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.enums.Phase;
+import br.ufg.inf.astorworker.enums.TestType;
 
 public class ProgramValidator  {
 	private static Logger logger = Logger.getLogger(ProgramValidator.class);
+	private static TestCasesProgramValidationResult originalResult;
+	private static String originalFailing;
 	
-	public static TestCasesProgramValidationResult validate(File variant) throws Exception {
+	/**
+	 * Runs the failing tests and, if they all pass, the regression, each
+	 * within the time limit of its phase. With "singlepass" both run in
+	 * one request to a test JVM, within the time of the regression, if the
+	 * variant runs there and the project has no instrumentation tests.
+	 */
+	public static TestCasesProgramValidationResult validate(Variant variant) throws Exception {
+		if(ConfigurationProperties.getPropertyBool("singlepass") && runsInSinglePass(variant))
+			return Watchdog.run(Phase.REGRESSION, () -> runSinglePass(variant));
+
+		TestCasesProgramValidationResult failingTestsResult = Watchdog.run(Phase.FAILING_TESTS, () -> runFailingTests(variant));
+
+		if(failingTestsResult != null)
+			return failingTestsResult;
+
+		//Execute regression
+		return Watchdog.run(Phase.REGRESSION, () -> runRegression(variant));
+	}
+
+	/* Returns null if every failing test passes, so the regression has to run */
+	private static TestCasesProgramValidationResult runFailingTests(Variant variant) throws Exception {
 		TestResult tr = null;
 
-		// Applying variant
-		AndroidProject.getInstance().applyVariant(variant);
+		TestOutputMonitor monitor = newMonitor(variant);
 
 		//Executing normal test cases
 		if(AndroidProject.getInstance().getFailingUnitTestCases() != null) {
 			JUnitTestExecutorProcess jtep = new JUnitTestExecutorProcess();
-			tr = jtep.executeFailingTests();
+			tr = jtep.executeFailingTests(variant, monitor);
 
 			if(tr == null){
 				logger.info("There was an error validating the variant");
@@ -36,9 +65,9 @@ public class ProgramValidator  {
 					
 
 		//Executing instrumentation test cases
-	 	if(AndroidProject.getInstance().getFailingInstrumentationTestCases() != null){
+	 	if(AndroidProject.getInstance().getFailingInstrumentationTestCases() != null && !monitor.isDecided()){
 			InstrumentationTestExecutorProcess itep = new InstrumentationTestExecutorProcess();
-			tr = itep.executeFailingTests(tr);
+			tr = itep.executeFailingTests(tr, monitor);
 
 			if(tr == null){
 				logger.info("There was an error validating the variant");
@@ -46,26 +75,212 @@ public class ProgramValidator  {
 			}
 		}
 
+		TestPrioritizer.getInstance().record(monitor.getFailures());
 		logger.info("Number of test cases executed: " + tr.casesExecuted + "\tNumber of failing test cases: " + tr.failures);
 
 		if(tr.wasSuccessful()){
 			logger.info("No failing test cases");
-			//Execute regression
-			return runRegression(variant);
+			return null;
 		}
 
 		return new TestCasesProgramValidationResult(tr, tr.wasSuccessful(), false);
 	}
 
 
-	private static TestCasesProgramValidationResult runRegression(File variant) throws Exception {
+	/*
+	 * Only the test JVMs run the failing tests before the rest of the
+	 * regression in one run. Gradle and the instrumentation runner pick
+	 * their own order, so those variants run the failing tests and the
+	 * regression apart.
+	 */
+	private static boolean runsInSinglePass(Variant variant) {
+		AndroidProject project = AndroidProject.getInstance();
+
+		return JUnitTestExecutorProcess.runsOnCompiledClasses(variant) 
+				&& project.getFailingInstrumentationTestCases() == null 
+				&& !project.instrumentationRegressionTestCasesExist();
+	}
+
+	/*
+	 * The failing tests are decisive: the run stops as soon as one of them
+	 * fails and the variant is answered as if only the failing tests had
+	 * run. Otherwise the same run goes on with the rest of the regression,
+	 * or with the tests picked by "regressionselection", without running
+	 * the failing tests again.
+	 */
+	private static TestCasesProgramValidationResult runSinglePass(Variant variant) throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+		RegressionSelector selector = RegressionSelector.getInstance();
+		RegressionSelector.Selection selection = selector.select(variant);
+		List<String> failing = project.getFailingUnitTestCases();
+
+		logger.info("Running the failing tests and the regression in a single pass");
+		TestResult tr = new TestResult();
+		TestOutputMonitor monitor = new TestOutputMonitor(ConfigurationProperties.getPropertyBool("failfast"), 
+				failing == null ? new ArrayList<String>() : failing, test -> logger.debug(test + " failed on " + variant.getName()));
+
+		if(failing != null || project.unitRegressionTestCasesExist()) {
+			tr = new JUnitTestExecutorProcess().executeSinglePass(variant, failing, 
+					selection == null ? null : selection.getTests(TestType.UNIT), monitor);
+
+			if(tr == null){
+				logger.info("There was an error validating the variant");
+				return new TestCasesProgramValidationResult(true);
+			}
+		}
+
+		TestPrioritizer.getInstance().record(monitor.getFailures());
+		logger.info("Number of test cases executed: "+tr.casesExecuted+"\tNumber of failing test cases: "+tr.failures);
+
+		if(monitor.hasDecisiveFailure())
+			return new TestCasesProgramValidationResult(tr, false, false);
+
+		TestCasesProgramValidationResult result = new TestCasesProgramValidationResult(tr, tr.wasSuccessful(), true);
+
+		if(selection != null && result.isSuccessful() && selector.confirmsFixes()) {
+			logger.info(variant.getName() + " passes the selected regression tests");
+			return runFullRegression(variant);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Validates a variant already known to compile and logs the outcome.
+	 * Variants compiled to the classes of the original program, or of a
+	 * variant already validated, reuse the result of the first one tested.
+	 */
+	public static TestCasesProgramValidationResult validateCompiled(Variant variant) throws Exception {
+		logger.info(variant.getName() + " compiles!");
+
+		if(variant.isEquivalentToPristine()) {
+			logger.info(variant.getName() + " compiles to the classes of the original program");
+			return originalResult(variant);
+		}
+
+		logger.info("Validating " + variant.getName() + "...");
+		TestCasesProgramValidationResult validationResult = ValidationCache.getInstance().validateBytecode(variant, () -> validate(variant));
+		validationResult.setCompilationSuccess(true);
+
+		if(validationResult.isSuccessful())
+			logger.info(variant.getName() + " is a fix!!!");
+		else
+			logger.info(variant.getName() + " is not a fix");
+
+		return validationResult;
+	}
+
+	public static TestCasesProgramValidationResult compilationFailure(Variant variant) {
+		logger.info(variant.getName() + " does not compile!");
+
+		TestCasesProgramValidationResult validationResult = new TestCasesProgramValidationResult(null);
+		validationResult.setCompilationSuccess(false);
+		return validationResult;
+	}
+
+	/*
+	 * With "failfast" a run stops at its first failing test, which already
+	 * tells that the variant is not a fix, and the next runs of the phase
+	 * are skipped. The counts of such a result only cover the tests run.
+	 */
+	private static TestOutputMonitor newMonitor(Variant variant) {
+		boolean failFast = ConfigurationProperties.getPropertyBool("failfast");
+		return new TestOutputMonitor(failFast, test -> logger.debug(test + " failed on " + variant.getName()));
+	}
+
+	/*
+	 * The original program is validated like any other variant the first
+	 * time a variant compiles to its classes, and its result answers the
+	 * next ones. The failing tests arrive after the project is set up, so
+	 * the result is kept for the failing tests it was run with.
+	 */
+	private static synchronized TestCasesProgramValidationResult originalResult(Variant variant) throws Exception {
+		AndroidProject project = AndroidProject.getInstance();
+		String failing = project.getFailingUnitTestCases() + ":" + project.getFailingInstrumentationTestCases();
+
+		if(originalResult == null || !failing.equals(originalFailing)) {
+			logger.info("Validating the original program with " + variant.getName());
+			TestCasesProgramValidationResult validationResult = validate(variant);
+			validationResult.setCompilationSuccess(true);
+
+			// An execution error says nothing about the original program
+			if(validationResult.isExecutionError())
+				return validationResult;
+
+			originalResult = validationResult;
+			originalFailing = failing;
+		}
+
+		return originalResult;
+	}
+
+	/**
+	 * Forgets the result of the original program of the previous project.
+	 */
+	public static synchronized void reset() {
+		originalResult = null;
+		originalFailing = null;
+	}
+
+	/*
+	 * With "regressionselection" only the tests that reach the changes of
+	 * the variant run first. A variant that fails one of them is not a fix;
+	 * one that passes them all runs the whole regression in "safe" mode.
+	 */
+	private static TestCasesProgramValidationResult runRegression(Variant variant) throws Exception {
+		RegressionSelector selector = RegressionSelector.getInstance();
+		RegressionSelector.Selection selection = selector.select(variant);
+
+		if(selection != null) {
+			TestCasesProgramValidationResult selected = runSelectedRegression(variant, selection);
+
+			if(selected.isExecutionError() || !selected.isSuccessful() || !selector.confirmsFixes())
+				return selected;
+
+			logger.info(variant.getName() + " passes the selected regression tests");
+		}
+
+		return runFullRegression(variant);
+	}
+
+	private static TestCasesProgramValidationResult runSelectedRegression(Variant variant, RegressionSelector.Selection selection) throws Exception {
+		logger.info("Running " + selection.size() + " regression tests selected by coverage");
+		TestResult trregression = new TestResult();
+		TestOutputMonitor monitor = newMonitor(variant);
+
+		if(!selection.getTests(TestType.UNIT).isEmpty()) {
+			trregression = new JUnitTestExecutorProcess().executeTests(variant, selection.getTests(TestType.UNIT), monitor);
+
+			if(trregression == null){
+				logger.info("There was an error validating the variant");
+				return new TestCasesProgramValidationResult(true);
+			}
+		}
+
+		if(!selection.getTests(TestType.INSTRUMENTATION).isEmpty() && !monitor.isDecided()) {
+			trregression = new InstrumentationTestExecutorProcess().executeTests(trregression, selection.getTests(TestType.INSTRUMENTATION), monitor);
+
+			if(trregression == null){
+				logger.info("There was an error validating the variant");
+				return new TestCasesProgramValidationResult(true);
+			}
+		}
+
+		TestPrioritizer.getInstance().record(monitor.getFailures());
+		logger.info("Number of test cases executed: "+trregression.casesExecuted+"\tNumber of failing test cases: "+trregression.failures);
+
+		return new TestCasesProgramValidationResult(trregression, trregression.wasSuccessful(), true);
+	}
+
+	private static TestCasesProgramValidationResult runFullRegression(Variant variant) throws Exception {
 		logger.info("Running regression");
 		TestResult trregression = null;
+		TestOutputMonitor monitor = newMonitor(variant);
 
 		//Executing normal test cases
 		if(AndroidProject.getInstance().unitRegressionTestCasesExist()) {
 			JUnitTestExecutorProcess jtep = new JUnitTestExecutorProcess();
-			trregression = jtep.executeRegression();
+			trregression = jtep.executeRegression(variant, monitor);
 
 			if(trregression == null){
 				logger.info("There was an error validating the variant");
@@ -74,9 +289,9 @@ public class ProgramValidator  {
 		}
 
 		//Executing instrumentation test cases
-	 	if(AndroidProject.getInstance().instrumentationRegressionTestCasesExist()) {
+	 	if(AndroidProject.getInstance().instrumentationRegressionTestCasesExist() && !monitor.isDecided()) {
 			InstrumentationTestExecutorProcess itep = new InstrumentationTestExecutorProcess();
-			trregression = itep.executeRegression(trregression);
+			trregression = itep.executeRegression(trregression, monitor);
 
 			if(trregression == null){
 				logger.info("There was an error validating the variant");
@@ -84,6 +299,7 @@ public class ProgramValidator  {
 			}
 		}
 
+		TestPrioritizer.getInstance().record(monitor.getFailures());
 		logger.info("Number of test cases executed: "+trregression.casesExecuted+"\tNumber of failing test cases: "+trregression.failures);
 		
 		return new TestCasesProgramValidationResult(trregression, trregression.wasSuccessful(), true);			
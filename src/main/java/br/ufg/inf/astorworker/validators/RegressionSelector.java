@@ -0,0 +1,250 @@
+package br.ufg.inf.astorworker.validators;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.cache.BaselineProfile;
+import br.ufg.inf.astorworker.cache.CoverageCache;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.enums.TestType;
+import br.ufg.inf.astorworker.faultlocalization.AndroidFaultLocalization;
+import br.ufg.inf.astorworker.faultlocalization.CoverageListener;
+import br.ufg.inf.astorworker.utils.DiffUtils;
+
+/**
+ * Picks the regression tests that can notice a variant. The lines covered
+ * by each test come from the coverage cache filled by fault localization,
+ * and the lines a variant changes from a diff of each of its files against
+ * the pristine sources. A test is selected if it covers a changed line or,
+ * when no test covers any changed line, e.g. a changed method signature,
+ * if it covers the class. Selection needs the baseline profile to know
+ * the whole suite: if fault localization did not run every test of the
+ * profile, or no test reaches the changes, the whole regression runs.
+ *
+ * With "regressionselection" set to "safe", a variant that passes the
+ * selected tests still runs the whole regression before it is reported as
+ * a fix; with "fast" it is reported right away.
+ */
+public class RegressionSelector {
+	private static RegressionSelector instance = null;
+	private CoverageCache indexedCache;
+	private Index index;
+	private Logger logger = Logger.getLogger(RegressionSelector.class);
+
+	private RegressionSelector() {}
+
+	public static synchronized RegressionSelector getInstance() {
+		if(instance == null)
+			instance = new RegressionSelector();
+
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return !ConfigurationProperties.getProperty("regressionselection").equals("off");
+	}
+
+	/**
+	 * True if a variant that passes the selected tests has to pass the
+	 * whole regression too.
+	 */
+	public boolean confirmsFixes() {
+		return ConfigurationProperties.getProperty("regressionselection").equals("safe");
+	}
+
+	/**
+	 * The regression tests that reach the changes of the variant, or null
+	 * if the whole regression has to run: without a baseline profile, if
+	 * the coverage misses tests of the profile, if no test reaches the
+	 * changes, or for variants that add, delete or change files other than
+	 * Java sources.
+	 */
+	public Selection select(Variant variant) throws IOException {
+		if(!isEnabled())
+			return null;
+
+		Index index = getIndex();
+		if(index == null || !index.isComplete())
+			return null;
+
+		AndroidProject project = AndroidProject.getInstance();
+		Set<String> paths = new TreeSet<String>(variant.getFiles().keySet());
+
+		if(variant.isComplete())
+			paths.addAll(project.getPristineSourceFiles());
+		else
+			paths.addAll(variant.getDeletedFiles());
+
+		Selection selection = new Selection();
+
+		for(String path : paths) {
+			byte[] contents = variant.getFiles().get(path);
+			boolean pristine = project.getPristineSourceFiles().contains(path);
+
+			if(contents == null || !pristine || !path.endsWith(".java")) {
+				logger.info(variant.getName() + " adds, deletes or changes " + path + ", the whole regression runs");
+				return null;
+			}
+
+			byte[] original = project.getPristineSource(path);
+			if(Arrays.equals(contents, original))
+				continue;
+
+			List<Integer> lines = DiffUtils.changedLines(new String(original, StandardCharsets.UTF_8), new String(contents, StandardCharsets.UTF_8));
+			index.select(getSourceName(path), lines, selection);
+		}
+
+		if(selection.size() == 0) {
+			logger.info("No regression test reaches the changes of " + variant.getName() + ", the whole regression runs");
+			return null;
+		}
+
+		logger.info(selection.size() + " regression tests reach the changes of " + variant.getName());
+		return selection;
+	}
+
+	/* Coverage is keyed by the path of the source file, "a/b/C.java" is "a/b/C" */
+	private static String getSourceName(String path) {
+		return path.substring(0, path.length() - ".java".length());
+	}
+
+	/* The index is built again whenever fault localization has added tests */
+	private synchronized Index getIndex() {
+		CoverageCache cache = AndroidFaultLocalization.getCoverageCache();
+		if(cache == null)
+			return null;
+
+		Map<TestType, List<String>> tests = new EnumMap<TestType, List<String>>(TestType.class);
+		int count = 0;
+
+		for(TestType type : TestType.values()) {
+			tests.put(type, cache.getTests(type));
+			count += tests.get(type).size();
+		}
+
+		if(count == 0)
+			return null;
+
+		if(cache != indexedCache || index.count != count) {
+			index = new Index(cache, tests, count);
+			indexedCache = cache;
+			logger.info("Regression selection indexed the coverage of " + count + " tests");
+
+			if(!index.isComplete())
+				logger.info("The coverage misses tests of the baseline profile, or there is no profile, so the whole regression runs");
+		}
+
+		return index;
+	}
+
+	/**
+	 * Lines and source files covered by each test, by test type.
+	 */
+	private static class Index {
+		private int count;
+		private Map<TestType, Map<String, Map<Integer, Set<String>>>> lines = new EnumMap<TestType, Map<String, Map<Integer, Set<String>>>>(TestType.class);
+		private Map<TestType, Map<String, Set<String>>> sources = new EnumMap<TestType, Map<String, Set<String>>>(TestType.class);
+		private boolean complete = true;
+
+		private Index(CoverageCache cache, Map<TestType, List<String>> tests, int count) {
+			this.count = count;
+
+			for(TestType type : TestType.values()) {
+				Map<String, Map<Integer, Set<String>>> typeLines = new HashMap<String, Map<Integer, Set<String>>>();
+				Map<String, Set<String>> typeSources = new HashMap<String, Set<String>>();
+
+				for(String test : tests.get(type)) {
+					cache.read(type, test, new CoverageListener() {
+						@Override
+						public void covered(String className, int number) {
+							covered("", className, number);
+						}
+
+						// Same-named files of different packages must not share their lines
+						@Override
+						public void covered(String packageName, String className, int number) {
+							String source = packageName.isEmpty() ? className : packageName + "/" + className;
+							typeLines.computeIfAbsent(source, unused -> new HashMap<Integer, Set<String>>())
+									.computeIfAbsent(number, unused -> new HashSet<String>()).add(test);
+							typeSources.computeIfAbsent(source, unused -> new HashSet<String>()).add(test);
+						}
+					});
+				}
+
+				lines.put(type, typeLines);
+				sources.put(type, typeSources);
+				if(!new HashSet<String>(tests.get(type)).containsAll(BaselineProfile.getInstance().getTests(type)))
+					complete = false;
+			}
+
+			complete &= BaselineProfile.getInstance().isReady();
+		}
+
+		/* True if every test the baseline profile knows was covered */
+		private boolean isComplete() {
+			return complete;
+		}
+
+		private void select(String source, List<Integer> changed, Selection selection) {
+			boolean reached = false;
+
+			for(TestType type : TestType.values()) {
+				Map<Integer, Set<String>> byLine = lines.get(type).get(source);
+				if(byLine == null)
+					continue;
+
+				for(int line : changed) {
+					Set<String> tests = byLine.get(line);
+					if(tests != null) {
+						selection.get(type).addAll(tests);
+						reached = true;
+					}
+				}
+			}
+
+			// Changed lines without instructions still change the class
+			if(!reached) {
+				for(TestType type : TestType.values())
+					selection.get(type).addAll(sources.get(type).getOrDefault(source, new HashSet<String>()));
+			}
+		}
+	}
+
+	/**
+	 * The selected tests of each type.
+	 */
+	public static class Selection {
+		private Map<TestType, Set<String>> tests = new EnumMap<TestType, Set<String>>(TestType.class);
+
+		private Selection() {
+			for(TestType type : TestType.values())
+				tests.put(type, new LinkedHashSet<String>());
+		}
+
+		private Set<String> get(TestType type) {
+			return tests.get(type);
+		}
+
+		public List<String> getTests(TestType type) {
+			return new ArrayList<String>(tests.get(type));
+		}
+
+		public int size() {
+			return tests.get(TestType.UNIT).size() + tests.get(TestType.INSTRUMENTATION).size();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package br.ufg.inf.astorworker.validators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import br.ufg.inf.astorworker.cache.BaselineProfile;
+import br.ufg.inf.astorworker.enums.TestType;
+
+/**
+ * Orders tests so the ones most likely to fail for the time they take run
+ * first. The worker counts, while a project is set up, how often each test
+ * failed on the variants validated so far, and a test is worth its number
+ * of failures plus one divided by its duration in the baseline profile.
+ * Without a profile every test is assumed to take the same time. With
+ * "failfast" the first failure of a variant that is not a fix then comes
+ * sooner. The order is followed by the test JVMs of "unitrunner jvm" and
+ * by the instrumentation runner; Gradle runs unit tests in its own order
+ * whatever the order of its filters.
+ */
+public class TestPrioritizer {
+	private static final long UNKNOWN_MILLIS = 1000;
+	private static TestPrioritizer instance = null;
+	private Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+
+	private TestPrioritizer() {}
+
+	public static synchronized TestPrioritizer getInstance() {
+		if(instance == null)
+			instance = new TestPrioritizer();
+
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return ConfigurationProperties.getPropertyBool("prioritize");
+	}
+
+	/**
+	 * Forgets the failures of the variants of the previous project.
+	 */
+	public void reset() {
+		failures.clear();
+	}
+
+	/**
+	 * Counts the tests that failed on a variant.
+	 */
+	public void record(Collection<String> failed) {
+		for(String test : new LinkedHashSet<String>(failed))
+			failures.merge(test, 1, Integer::sum);
+	}
+
+	/**
+	 * The tests in the order they should run, or as given if prioritization
+	 * is off. Ties keep their order.
+	 */
+	public List<String> order(TestType type, Collection<String> tests) {
+		List<String> ordered = new ArrayList<String>(tests);
+
+		if(isEnabled())
+			ordered.sort(Comparator.comparingDouble((String test) -> score(type, test)).reversed());
+
+		return ordered;
+	}
+
+	/**
+	 * The tests of the type profiled by the baseline, in the order they
+	 * should run before the rest of the suite, or none if prioritization
+	 * is off. Failures alone do not tell the type of a test, so tests
+	 * outside the profile are left to the rest of the suite.
+	 */
+	public List<String> getKnownTests(TestType type) {
+		if(!isEnabled())
+			return new ArrayList<String>();
+
+		return order(type, BaselineProfile.getInstance().getTests(type));
+	}
+
+	private double score(TestType type, String test) {
+		long millis = BaselineProfile.getInstance().getMillis(type, test);
+		return (failures.getOrDefault(test, 0) + 1.0) / Math.max(millis < 0 ? UNKNOWN_MILLIS : millis, 1);
+	}
+}
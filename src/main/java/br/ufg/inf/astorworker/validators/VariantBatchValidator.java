@@ -0,0 +1,163 @@
+package br.ufg.inf.astorworker.validators;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
+import br.ufg.inf.astorworker.cache.ValidationCache;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.executors.VariantCompiler;
+
+/**
+ * Validates a batch of variants. All of them are compiled in memory at
+ * the same time, each into its own output directory, on "compilethreads"
+ * threads. Variants that do not compile are reported right away, the
+ * others are tested as soon as they compile, on the first free project
+ * slot. Variants equivalent to one already validated are reported before
+ * anything is compiled.
+ */
+public class VariantBatchValidator {
+	private static Logger logger = Logger.getLogger(VariantBatchValidator.class);
+
+	public static void validate(List<Variant> batch, ResultListener listener) throws Exception {
+		ValidationCache cache = ValidationCache.getInstance();
+		Map<Variant, String> keys = new HashMap<Variant, String>();
+		Map<Variant, Long> millis = new ConcurrentHashMap<Variant, Long>();
+		List<Variant> variants = new ArrayList<Variant>();
+
+		for(Variant variant : batch) {
+			if(cache.isEnabled()) {
+				String key = cache.key(variant);
+				TestCasesProgramValidationResult cached = cache.get(variant, key);
+
+				if(cached != null) {
+					report(listener, variant, cached);
+					continue;
+				}
+
+				keys.put(variant, key);
+			}
+
+			variants.add(variant);
+		}
+
+		ResultListener caching = (variant, result) -> {
+			if(keys.containsKey(variant))
+				cache.put(keys.get(variant), result, millis.getOrDefault(variant, 0L));
+
+			listener.onResult(variant, result);
+		};
+
+		File outputRoot = new File(new File(ConfigurationProperties.getProperty("variantbin")).getParentFile(), "batch");
+		int threads = Math.min(ConfigurationProperties.getPropertyInt("compilethreads"), variants.size());
+		ExecutorService compilers = Executors.newFixedThreadPool(Math.max(threads, 1));
+		CompletionService<Variant> compiled = new ExecutorCompletionService<Variant>(compilers);
+
+		logger.info("Compiling " + variants.size() + " variants on " + threads + " threads");
+
+		for(int i = 0; i < variants.size(); i++) {
+			Variant variant = variants.get(i);
+			File outputDirectory = new File(outputRoot, Integer.toString(i));
+
+			compiled.submit(() -> {
+				long t_start = System.currentTimeMillis();
+				boolean compiles;
+
+				try {
+					compiles = VariantCompiler.getInstance().compile(variant, outputDirectory);
+				} catch(Exception e) {
+					logger.error("Could not compile " + variant.getName() + ": " + e);
+					FileUtils.deleteQuietly(outputDirectory);
+					report(caching, variant, new TestCasesProgramValidationResult(true));
+					return null;
+				}
+
+				millis.put(variant, System.currentTimeMillis() - t_start);
+
+				// The classes, if written, are kept until the variant is tested
+				if(compiles)
+					return variant;
+
+				report(caching, variant, ProgramValidator.compilationFailure(variant));
+				return null;
+			});
+		}
+
+		ExecutorService testers = Executors.newFixedThreadPool(AndroidProject.getInstance().getSlotCount());
+		List<Future<?>> tests = new ArrayList<Future<?>>();
+
+		try {
+			for(int i = 0; i < variants.size(); i++) {
+				Variant variant;
+
+				try {
+					variant = compiled.take().get();
+				} catch(ExecutionException e) {
+					logger.error("Could not report a result of the batch: " + e.getCause());
+					continue;
+				}
+
+				if(variant != null)
+					tests.add(testers.submit(() -> AndroidProject.getInstance().runInSlot(() -> test(variant, caching, millis))));
+			}
+
+			logger.info(tests.size() + " of " + variants.size() + " variants compiled");
+
+			for(Future<?> test : tests) {
+				try {
+					test.get();
+				} catch(ExecutionException e) {
+					logger.error("Could not report a result of the batch: " + e.getCause());
+				}
+			}
+		} finally {
+			compilers.shutdownNow();
+			testers.shutdown();
+		}
+	}
+
+	private static Void test(Variant variant, ResultListener listener, Map<Variant, Long> millis) throws Exception {
+		long t_start = System.currentTimeMillis();
+		TestCasesProgramValidationResult result;
+
+		try {
+			AndroidProject.getInstance().applyVariant(variant);
+			result = ProgramValidator.validateCompiled(variant);
+		} catch(Exception e) {
+			logger.error("Could not validate " + variant.getName() + ": " + e);
+			result = new TestCasesProgramValidationResult(true);
+		} finally {
+			FileUtils.deleteQuietly(variant.getClassesDirectory());
+		}
+
+		millis.merge(variant, System.currentTimeMillis() - t_start, Long::sum);
+		report(listener, variant, result);
+		return null;
+	}
+
+	/* Results come from the compiling threads and from the testing one */
+	private static void report(ResultListener listener, Variant variant, TestCasesProgramValidationResult result) throws Exception {
+		synchronized(listener) {
+			listener.onResult(variant, result);
+		}
+	}
+
+	public interface ResultListener {
+		void onResult(Variant variant, TestCasesProgramValidationResult result) throws Exception;
+	}
+}
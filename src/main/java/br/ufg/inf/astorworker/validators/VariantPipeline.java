@@ -0,0 +1,165 @@
+package br.ufg.inf.astorworker.validators;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
+import br.ufg.inf.astorworker.cache.ValidationCache;
+import br.ufg.inf.astorworker.entities.AndroidProject;
+import br.ufg.inf.astorworker.entities.Variant;
+import br.ufg.inf.astorworker.executors.VariantCompiler;
+
+/**
+ * Processes variants in three stages: receive, compile and test. While
+ * variants run their tests the next ones are received and compiled, and
+ * every result is reported as soon as its variant finishes. Variants are
+ * compiled in memory by VariantCompiler, against the pristine sources and
+ * classes, so only the test stage touches the project sources. The test
+ * stage has one thread per project slot, so with several slots several
+ * variants are tested at once. Variants equivalent to one already
+ * validated skip both stages.
+ */
+public class VariantPipeline {
+	private ExecutorService receiveStage = Executors.newSingleThreadExecutor();
+	private ExecutorService compileStage = Executors.newSingleThreadExecutor();
+	private ExecutorService testStage;
+	private Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+	private AtomicInteger compiled = new AtomicInteger();
+	private Logger logger = Logger.getLogger(VariantPipeline.class);
+
+	public VariantPipeline(int slots) {
+		testStage = Executors.newFixedThreadPool(slots);
+	}
+
+	public void submit(VariantReceiver receiver, ResultListener listener) {
+		CompletableFuture<Void> processing = CompletableFuture
+				.supplyAsync(() -> stage(unused -> receiver.receive()).apply(null), receiveStage)
+				.thenApplyAsync(stage(this::compile), compileStage)
+				.thenApplyAsync(stage(compiled -> AndroidProject.getInstance().runInSlot(() -> test(compiled))), testStage)
+				.handle((result, error) -> {
+					try {
+						listener.onResult(result, error == null ? null : unwrap(error));
+					} catch(Exception e) {
+						logger.error("Could not report a pipelined result: " + e);
+					}
+					return null;
+				});
+
+		inFlight.add(processing);
+		processing.whenComplete((result, error) -> inFlight.remove(processing));
+	}
+
+	/**
+	 * Waits until every submitted variant has been reported.
+	 */
+	public void drain() {
+		for(CompletableFuture<Void> processing : inFlight)
+			processing.join();
+	}
+
+	public void shutdown() {
+		drain();
+		receiveStage.shutdown();
+		compileStage.shutdown();
+		testStage.shutdown();
+	}
+
+	private CompiledVariant compile(Variant variant) throws Exception {
+		ValidationCache cache = ValidationCache.getInstance();
+		CompiledVariant compiled = new CompiledVariant(variant);
+
+		if(cache.isEnabled()) {
+			compiled.key = cache.key(variant);
+			compiled.cached = cache.get(variant, compiled.key);
+			if(compiled.cached != null)
+				return compiled;
+		}
+
+		logger.info("Compiling " + variant.getName());
+
+		// Each variant keeps its classes until it is tested, as several may be waiting
+		long t_start = System.currentTimeMillis();
+		File classes = new File(new File(ConfigurationProperties.getProperty("variantbin")).getParentFile(), "pipeline/" + this.compiled.getAndIncrement());
+		compiled.compiles = VariantCompiler.getInstance().compile(variant, classes);
+		compiled.millis = System.currentTimeMillis() - t_start;
+		return compiled;
+	}
+
+	private TestCasesProgramValidationResult test(CompiledVariant compiled) throws Exception {
+		if(compiled.cached != null)
+			return compiled.cached;
+
+		long t_start = System.currentTimeMillis();
+		TestCasesProgramValidationResult result;
+
+		if(!compiled.compiles)
+			result = ProgramValidator.compilationFailure(compiled.variant);
+		else {
+			try {
+				AndroidProject.getInstance().applyVariant(compiled.variant);
+				result = ProgramValidator.validateCompiled(compiled.variant);
+			} finally {
+				FileUtils.deleteQuietly(compiled.variant.getClassesDirectory());
+			}
+		}
+
+		if(compiled.key != null)
+			ValidationCache.getInstance().put(compiled.key, result, compiled.millis + System.currentTimeMillis() - t_start);
+
+		return result;
+	}
+
+	private static <T, R> Function<T, R> stage(Stage<T, R> stage) {
+		return input -> {
+			try {
+				return stage.apply(input);
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new CompletionException(e);
+			}
+		};
+	}
+
+	private static Exception unwrap(Throwable error) {
+		while(error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+
+		return error instanceof Exception ? (Exception) error : new Exception(error);
+	}
+
+	private static class CompiledVariant {
+		private Variant variant;
+		private boolean compiles;
+		private long millis;
+		private String key;
+		private TestCasesProgramValidationResult cached;
+
+		private CompiledVariant(Variant variant) {
+			this.variant = variant;
+		}
+	}
+
+	private interface Stage<T, R> {
+		R apply(T input) throws Exception;
+	}
+
+	public interface VariantReceiver {
+		Variant receive() throws Exception;
+	}
+
+	public interface ResultListener {
+		void onResult(TestCasesProgramValidationResult result, Exception error) throws Exception;
+	}
+}
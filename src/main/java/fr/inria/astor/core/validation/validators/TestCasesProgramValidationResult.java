@@ -18,6 +18,8 @@ import fr.inria.astor.core.entities.TestCaseVariantValidationResult;
  *		- Added the variable serialVersionUID
  *		- Added the variable compilationSucess
  *		- Added function isCompilationSuccess
+ *		- Added a constructor that sets every flag and the function isResultSucess,
+ *		  used to decode results sent with the compact codec
  */
 public class TestCasesProgramValidationResult  implements Serializable, TestCaseVariantValidationResult {
 
@@ -57,6 +59,13 @@ public class TestCasesProgramValidationResult  implements Serializable, TestCase
 		this.resultSucess = resultSucess;
 	}
 
+	public TestCasesProgramValidationResult(TestResult result, boolean resultSucess, boolean regressionExecuted,
+			boolean compilationSuccess, boolean executionError) {
+		this(result, resultSucess, regressionExecuted);
+		this.compilationSuccess = compilationSuccess;
+		this.executionError = executionError;
+	}
+
 	public boolean isSuccessful() {
 
 		return numberFailingTestCases == 0 && this.resultSucess;
@@ -114,6 +123,10 @@ public class TestCasesProgramValidationResult  implements Serializable, TestCase
 		return executionError;
 	}
 
+	public boolean isResultSucess() {
+		return resultSucess;
+	}
+
 	public boolean isCompilationSuccess(){
 		return compilationSuccess;
 	}	
@@ -0,0 +1,216 @@
+package br.ufg.inf.astorworker.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import fr.inria.astor.core.validation.entity.TestResult;
+import fr.inria.astor.core.validation.validators.TestCasesProgramValidationResult;
+import br.ufg.inf.astorworker.faultlocalization.entities.Line;
+
+/**
+ * Encodes results with ResultCodec, decodes them back and compares them
+ * field by field with the originals.
+ */
+public class ResultCodecTest {
+
+	@Test
+	public void roundTripsPrimitives() throws IOException {
+		int[] varInts = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE };
+		double[] doubles = { 0.0, -0.0, 1.0 / 3, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.NEGATIVE_INFINITY };
+		String[] strings = { "", "a", "com.example.FooTest#testBar", "a\u00e7\u00e3o \u2713 \u6d4b\u8bd5" };
+
+		CompactOutput out = new CompactOutput(0);
+		for(int value : varInts)
+			out.writeVarInt(value);
+		for(double value : doubles)
+			out.writeDouble(value);
+		for(String value : strings)
+			out.writeString(value);
+		out.writeByte(0xFF);
+
+		CompactInput in = new CompactInput(out.toByteArray());
+		for(int value : varInts)
+			assertEquals(value, in.readVarInt());
+		for(double value : doubles)
+			assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(in.readDouble()));
+		for(String value : strings)
+			assertEquals(value, in.readString());
+		assertEquals(0xFF, in.readByte());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeVarInts() {
+		new CompactOutput(16).writeVarInt(-1);
+	}
+
+	@Test(expected = EOFException.class)
+	public void rejectsTruncatedInput() throws IOException {
+		CompactOutput out = new CompactOutput(16);
+		out.writeString("truncated");
+		byte[] bytes = out.toByteArray();
+
+		new CompactInput(Arrays.copyOf(bytes, bytes.length - 1)).readString();
+	}
+
+	@Test
+	public void writesEachStringOnce() throws IOException {
+		CompactOutput out = new CompactOutput(16);
+		assertEquals(0, out.index("a"));
+		assertEquals(1, out.index("b"));
+		assertEquals(0, out.index("a"));
+		out.writeStringTable();
+		out.writeVarInt(1);
+		out.writeVarInt(0);
+
+		CompactInput in = new CompactInput(out.toByteArray());
+		assertEquals(2, in.readVarInt());
+		assertEquals("a", in.readString());
+		assertEquals("b", in.readString());
+
+		in = new CompactInput(out.toByteArray());
+		in.readStringTable();
+		assertEquals("b", in.readIndexedString());
+		assertEquals("a", in.readIndexedString());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsUnknownStringIndices() throws IOException {
+		CompactOutput out = new CompactOutput(16);
+		out.index("a");
+		out.writeStringTable();
+		out.writeVarInt(1);
+
+		CompactInput in = new CompactInput(out.toByteArray());
+		in.readStringTable();
+		in.readIndexedString();
+	}
+
+	@Test
+	public void roundTripsValidationResults() throws IOException {
+		TestResult tr = new TestResult();
+		tr.casesExecuted = 300;
+		tr.failures = 2;
+		tr.successTest.addAll(tests("com.example.FooTest#test", 298));
+		tr.failTest.addAll(Arrays.asList("com.example.BarTest#testFails", "com.example.BarTest#testA\u00e7\u00e3o"));
+
+		// Every combination of the flags, with and without a test result
+		for(int flags = 0; flags < 16; flags++) {
+			TestCasesProgramValidationResult result = new TestCasesProgramValidationResult(tr,
+					(flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, (flags & 8) != 0);
+			assertSameResult(result, roundTrip(result));
+
+			TestCasesProgramValidationResult withoutTests = new TestCasesProgramValidationResult(null,
+					(flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, (flags & 8) != 0);
+			assertSameResult(withoutTests, roundTrip(withoutTests));
+		}
+	}
+
+	@Test
+	public void roundTripsExecutionErrors() throws IOException {
+		TestCasesProgramValidationResult result = new TestCasesProgramValidationResult(true);
+		TestCasesProgramValidationResult decoded = roundTrip(result);
+
+		assertSameResult(result, decoded);
+		assertTrue(decoded.isExecutionError());
+		assertNull(decoded.getTestResult());
+	}
+
+	@Test
+	public void roundTripsCompilationFailures() throws IOException {
+		TestCasesProgramValidationResult result = new TestCasesProgramValidationResult(null);
+		result.setCompilationSuccess(false);
+		TestCasesProgramValidationResult decoded = roundTrip(result);
+
+		assertSameResult(result, decoded);
+		assertFalse(decoded.isCompilationSuccess());
+	}
+
+	@Test
+	public void roundTripsSuspiciousLines() throws IOException {
+		List<Line> candidates = new ArrayList<Line>();
+		candidates.add(new Line(1, "com.example.Foo", new ArrayList<String>(Arrays.asList("com.example.FooTest#testA", "com.example.FooTest#testB")),
+				1, 0, 1, 10, 0.7071067811865475));
+		candidates.add(new Line(200000, "com.example.Foo$Inner", new ArrayList<String>(Arrays.asList("com.example.FooTest#testA")),
+				1, 3, 0, 10, 1.0 / 3));
+		candidates.add(new Line(42, "com.example.A\u00e7\u00e3o", new ArrayList<String>(), 0, 4, 0, 0, Double.NaN));
+		candidates.add(new Line(7, "com.example.Bar", tests("com.example.BarTest#test", 500), 200, 1, 300, Integer.MAX_VALUE, 0.0));
+
+		List<Line> decoded = ResultCodec.decodeCandidates(ResultCodec.encode(candidates));
+
+		assertEquals(candidates.size(), decoded.size());
+		for(int i = 0; i < candidates.size(); i++)
+			assertSameLine(candidates.get(i), decoded.get(i));
+	}
+
+	@Test
+	public void roundTripsEmptyCandidates() throws IOException {
+		assertTrue(ResultCodec.decodeCandidates(ResultCodec.encode(new ArrayList<Line>())).isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTheOtherKind() throws IOException {
+		ResultCodec.decodeCandidates(ResultCodec.encode(new TestCasesProgramValidationResult(true)));
+	}
+
+	@Test
+	public void tellsCompactResultsFromSerializedOnes() {
+		assertTrue(ResultCodec.isCompact(ResultCodec.encode(new ArrayList<Line>())));
+		assertFalse(ResultCodec.isCompact(new byte[] { (byte) 0xAC, (byte) 0xED, 0, 5 }));
+		assertFalse(ResultCodec.isCompact(new byte[0]));
+	}
+
+	private static TestCasesProgramValidationResult roundTrip(TestCasesProgramValidationResult result) throws IOException {
+		return ResultCodec.decodeValidationResult(ResultCodec.encode(result));
+	}
+
+	private static List<String> tests(String prefix, int count) {
+		List<String> tests = new ArrayList<String>();
+		for(int i = 0; i < count; i++)
+			tests.add(prefix + i);
+		return tests;
+	}
+
+	private static void assertSameResult(TestCasesProgramValidationResult expected, TestCasesProgramValidationResult actual) {
+		assertEquals(expected.isExecutionError(), actual.isExecutionError());
+		assertEquals(expected.isCompilationSuccess(), actual.isCompilationSuccess());
+		assertEquals(expected.isRegressionExecuted(), actual.isRegressionExecuted());
+		assertEquals(expected.isResultSucess(), actual.isResultSucess());
+		assertEquals(expected.isSuccessful(), actual.isSuccessful());
+		assertEquals(expected.getPassingTestCases(), actual.getPassingTestCases());
+		assertEquals(expected.getFailureCount(), actual.getFailureCount());
+		assertEquals(expected.getCasesExecuted(), actual.getCasesExecuted());
+
+		if(expected.getTestResult() == null) {
+			assertNull(actual.getTestResult());
+			return;
+		}
+
+		TestResult expectedTests = expected.getTestResult();
+		TestResult actualTests = actual.getTestResult();
+		assertEquals(expectedTests.casesExecuted, actualTests.casesExecuted);
+		assertEquals(expectedTests.failures, actualTests.failures);
+		assertEquals(expectedTests.successTest, actualTests.successTest);
+		assertEquals(expectedTests.failTest, actualTests.failTest);
+	}
+
+	private static void assertSameLine(Line expected, Line actual) {
+		assertEquals(expected.getNumber(), actual.getNumber());
+		assertEquals(expected.getClassName(), actual.getClassName());
+		assertEquals(expected.getTestList(), actual.getTestList());
+		assertEquals(expected.getFailingExecuted(), actual.getFailingExecuted());
+		assertEquals(expected.getFailingNotExecuted(), actual.getFailingNotExecuted());
+		assertEquals(expected.getPassingExecuted(), actual.getPassingExecuted());
+		assertEquals(expected.getTotalPassing(), actual.getTotalPassing());
+		assertEquals(Double.doubleToLongBits(expected.getSuspiciousValue()), Double.doubleToLongBits(actual.getSuspiciousValue()));
+	}
+}
@@ -0,0 +1,145 @@
+package br.ufg.inf.astorworker.executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fr.inria.astor.core.setup.ConfigurationProperties;
+import fr.inria.astor.core.validation.entity.TestResult;
+
+/**
+ * Runs DevicePool and the sharded instrumentation runs against a fake adb,
+ * src/test/resources/fakeadb/adb, that exposes several devices.
+ */
+public class DevicePoolTest {
+	private static final String INSTRUMENTATION = "com.example.test/android.support.test.runner.AndroidJUnitRunner";
+
+	@Rule
+	public TemporaryFolder androidHome = new TemporaryFolder();
+	private File platformTools;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(!AndroidToolsExecutorProcess.getOperatingSystem().equals("Windows"));
+
+		platformTools = new File(androidHome.getRoot(), "platform-tools");
+		File adb = new File(platformTools, "adb");
+		FileUtils.copyURLToFile(getClass().getResource("/fakeadb/adb"), adb);
+		adb.setExecutable(true);
+
+		AndroidToolsExecutorProcess.setup(androidHome.getRoot().getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() {
+		ConfigurationProperties.properties.remove("devices");
+	}
+
+	@Test
+	public void listsOnlineDevices() throws Exception {
+		DevicePool pool = DevicePool.getInstance();
+		pool.setup();
+
+		assertEquals(Arrays.asList("emulator-5554", "emulator-5556", "0123456789ABCDEF"), pool.getDevices());
+		assertEquals(3, pool.size());
+	}
+
+	@Test
+	public void keepsOnlyTheRequestedDevices() throws Exception {
+		ConfigurationProperties.setProperty("devices", "emulator-5556,emulator-5558,unknown");
+
+		DevicePool pool = DevicePool.getInstance();
+		pool.setup();
+
+		assertEquals(Arrays.asList("emulator-5556"), pool.getDevices());
+	}
+
+	@Test
+	public void acquiresEveryFreeDevice() throws Exception {
+		DevicePool pool = DevicePool.getInstance();
+		pool.setup();
+
+		String device = pool.acquire();
+		List<String> free = pool.acquireFree();
+		assertEquals(2, free.size());
+		assertTrue(!free.contains(device));
+
+		pool.release(device);
+		pool.release(free);
+		assertEquals(3, pool.acquireFree().size());
+	}
+
+	@Test
+	public void runsOneShardPerDevice() throws Exception {
+		DevicePool pool = DevicePool.getInstance();
+		pool.setup();
+
+		List<String> devices = pool.acquireFree();
+		assertEquals(INSTRUMENTATION, AndroidToolsExecutorProcess.findInstrumentation("com.example.test", devices.get(0)));
+
+		InstrumentationTestExecutorProcess executor = new InstrumentationTestExecutorProcess();
+		TestOutputMonitor monitor = new TestOutputMonitor(false, test -> {});
+		TestResult tr = new TestResult();
+
+		for(int shard = 0; shard < devices.size(); shard++) {
+			List<String> output = AndroidToolsExecutorProcess.runInstrumentationShard(INSTRUMENTATION, devices.size(), shard, devices.get(shard), monitor);
+			tr = executor.getShardTestResult(tr, output, false);
+			assertNotNull(tr);
+		}
+
+		pool.release(devices);
+
+		assertEquals(3, tr.casesExecuted);
+		assertEquals(1, tr.failures);
+		assertEquals(Arrays.asList("com.example.ShardTest#shard0_emulator-5554", "com.example.ShardTest#shard2_0123456789ABCDEF"), tr.successTest);
+		assertEquals(Arrays.asList("com.example.ShardTest#shard1_emulator-5556"), tr.failTest);
+	}
+
+	@Test
+	public void reconnectsOnlyTheFailingDevice() throws Exception {
+		new File(platformTools, "offline-emulator-5556").createNewFile();
+		TestOutputMonitor monitor = new TestOutputMonitor(false, test -> {});
+
+		List<String> output = AndroidToolsExecutorProcess.runInstrumentationShard(INSTRUMENTATION, 3, 1, "emulator-5556", monitor);
+		TestResult tr = new InstrumentationTestExecutorProcess().getShardTestResult(new TestResult(), output, false);
+
+		assertEquals(Arrays.asList("com.example.ShardTest#shard1_emulator-5556"), tr.failTest);
+
+		List<String> commands = FileUtils.readLines(new File(platformTools, "adb.log"), "UTF-8");
+		assertTrue(commands.contains("-s emulator-5556 reconnect"));
+		assertFalse(commands.contains("kill-server"));
+	}
+
+	@Test
+	public void rejectsUnfinishedShardsUnlessStopped() throws Exception {
+		InstrumentationTestExecutorProcess executor = new InstrumentationTestExecutorProcess();
+		List<String> output = new ArrayList<String>(Arrays.asList(
+				"INSTRUMENTATION_STATUS: class=com.example.ShardTest",
+				"INSTRUMENTATION_STATUS: test=shard0",
+				"INSTRUMENTATION_STATUS_CODE: 1",
+				"INSTRUMENTATION_STATUS: class=com.example.ShardTest",
+				"INSTRUMENTATION_STATUS: test=shard0",
+				"INSTRUMENTATION_STATUS_CODE: -2"));
+
+		assertNull(executor.getShardTestResult(new TestResult(), output, false));
+
+		TestResult tr = executor.getShardTestResult(new TestResult(), output, true);
+		assertEquals(1, tr.casesExecuted);
+		assertEquals(Arrays.asList("com.example.ShardTest#shard0"), tr.failTest);
+	}
+}